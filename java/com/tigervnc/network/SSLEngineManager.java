@@ -25,6 +25,7 @@ import javax.net.ssl.SSLEngineResult.*;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
+import com.tigervnc.rdr.EndOfStream;
 import com.tigervnc.rdr.FdInStream;
 import com.tigervnc.rdr.FdOutStream;
 
@@ -39,6 +40,7 @@ public class SSLEngineManager {
   private ByteBuffer myNetData;
   private ByteBuffer peerAppData;
   private ByteBuffer peerNetData;
+  private ByteBuffer dataBuf;
 
   private Executor executor;
   private FdInStream in;
@@ -60,7 +62,9 @@ public class SSLEngineManager {
       ByteBuffer.allocate(Math.max(appBufSize, os.getBufSize()));
     myNetData = ByteBuffer.allocate(pktBufSize);
     peerAppData = ByteBuffer.allocate(appBufSize);
-    peerNetData = ByteBuffer.allocate(pktBufSize);
+    // The socket is read straight into peerNetData, so make it direct to
+    // spare the channel a copy through a temporary buffer of its own.
+    peerNetData = ByteBuffer.allocateDirect(pktBufSize);
   }
 
   public void doHandshake() throws Exception {
@@ -84,13 +88,7 @@ public class SSLEngineManager {
         // Check status
         switch (res.getStatus()) {
           case BUFFER_UNDERFLOW:
-            int max = Math.min(peerNetData.remaining(), in.getBufSize());
-            int m = in.check(1, max, true);
-            int pos = peerNetData.position();
-            in.readBytes(peerNetData.array(), pos, m);
-            peerNetData.position(pos+m);
-            peerNetData.flip();
-            peerNetData.compact();
+            in.readBuffer(peerNetData, true);
             break;
     
           case OK:
@@ -149,38 +147,75 @@ public class SSLEngineManager {
     }
   }
 
-  public int read(byte[] data, int dataPtr, int length) throws IOException {
-    // Read SSL/TLS encoded data from peer
-    int bytesRead = 0;
-    peerNetData.flip();
-    SSLEngineResult res = engine.unwrap(peerNetData, peerAppData);
-    peerNetData.compact();
-    switch (res.getStatus()) {
-      case OK :
-        bytesRead = Math.min(length, res.bytesProduced());
-        peerAppData.flip();
-        peerAppData.get(data, dataPtr, bytesRead);
-        peerAppData.compact();
-        break;
+  // read() decrypts as many complete records as are available, and fit,
+  // straight into data.  It only waits for the network if it has nothing to
+  // return and wait is true, so it returns 0 only if wait is false.
 
-      case BUFFER_UNDERFLOW:
-        // need more net data
-        int pos = peerNetData.position();
-        // attempt to drain the underlying buffer first
-        int need = peerNetData.remaining();
-        int avail = in.check(1, in.getBufSize(), false);
-        if (avail < need)
-          avail = in.check(1, Math.min(need, in.getBufSize()), true);
-        in.readBytes(peerNetData.array(), pos, Math.min(need, avail));
-        peerNetData.position(pos+Math.min(need, avail));
-        break;
+  public int read(byte[] data, int dataPtr, int length, boolean wait)
+    throws IOException {
+    int n = 0;
 
-      case CLOSED:
-        engine.closeInbound();
-        break;
+    // Return anything left over from a record which did not fit last time
+    if (peerAppData.position() > 0) {
+      peerAppData.flip();
+      n = Math.min(length, peerAppData.remaining());
+      peerAppData.get(data, dataPtr, n);
+      peerAppData.compact();
+      return n;
+    }
+
+    if (dataBuf == null || dataBuf.array() != data)
+      dataBuf = ByteBuffer.wrap(data);
+
+    while (true) {
+      dataBuf.clear();
+      dataBuf.limit(dataPtr + length);
+      dataBuf.position(dataPtr + n);
+
+      peerNetData.flip();
+      SSLEngineResult res = engine.unwrap(peerNetData, dataBuf);
+      peerNetData.compact();
+      n += res.bytesProduced();
+
+      if (res.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+        runTasks();
+
+      switch (res.getStatus()) {
+        case OK:
+          break;
+
+        case BUFFER_OVERFLOW:
+          if (n > 0)
+            return n;
+          // The space given is too small for the next record, so decrypt it
+          // into peerAppData and return what fits.
+          peerNetData.flip();
+          res = engine.unwrap(peerNetData, peerAppData);
+          peerNetData.compact();
+          if (res.getStatus() != Status.OK)
+            throw new SSLException("unwrap: "+res.getStatus());
+          return read(data, dataPtr, length, wait);
+
+        case BUFFER_UNDERFLOW:
+          // Need more network data.  Once something has been decrypted, only
+          // take what has already arrived.
+          if (in.readBuffer(peerNetData, wait && n == 0) == 0)
+            return n;
+          break;
 
+        case CLOSED:
+          engine.closeInbound();
+          if (n == 0)
+            throw new EndOfStream();
+          return n;
+      }
     }
-    return bytesRead;
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = engine.getDelegatedTask()) != null)
+      task.run();
   }
 
   public int write(byte[] data, int dataPtr, int length) throws IOException {
@@ -56,6 +56,7 @@ public class SocketDescriptor implements FileDescriptor {
     } catch(IOException e) {
       throw new IOException(e.getMessage());
     }
+    wakeup();
   }
 
   public void close() throws IOException {
@@ -64,6 +65,14 @@ public class SocketDescriptor implements FileDescriptor {
     } catch(IOException e) {
       throw new IOException(e.getMessage());
     }
+    wakeup();
+  }
+
+  // wakeup() releases any thread blocked in select(), which may be waiting
+  // with no timeout.  Closing the channel alone does not do that.
+  private void wakeup() {
+    readSelector.wakeup();
+    writeSelector.wakeup();
   }
 
   private static SelectorProvider DefaultSelectorProvider() {
@@ -74,9 +83,25 @@ public class SocketDescriptor implements FileDescriptor {
     return SelectorProvider.provider();
   }
 
-  synchronized public int read(byte[] buf, int bufPtr, int length) throws Exception {
+  // read() and write() stage data through long-lived direct buffers, one
+  // per direction, so that neither allocates per call.  The RFB thread is
+  // the only reader and writes are serialised by the output stream, so the
+  // two paths share no state and need no lock.
+  //
+  // The read buffer grows, up to MAX_READ_BUF_SIZE, to the largest length
+  // asked for, so that a read can fill all the space a caller offers.
+  // FdInStream relies on that to tell when its own buffer should grow.
+
+  public int read(byte[] buf, int bufPtr, int length) throws Exception {
     int n;
-    ByteBuffer b = ByteBuffer.allocate(length);
+    ByteBuffer b = readBuf;
+    if (length > b.capacity() && b.capacity() < MAX_READ_BUF_SIZE) {
+      b = ByteBuffer.allocateDirect(Math.min(length, MAX_READ_BUF_SIZE));
+      readBuf = b;
+    }
+    b.clear();
+    if (length < b.capacity())
+      b.limit(length);
     try {
       n = channel.read(b);
     } catch (java.io.IOException e) {
@@ -86,26 +111,30 @@ public class SocketDescriptor implements FileDescriptor {
       return (n == 0) ? -1 : 0;
     b.flip();
     b.get(buf, bufPtr, n);
-    b.clear();
     return n;
-
   }
 
-  synchronized public int write(byte[] buf, int bufPtr, int length) throws Exception {
+  public int write(byte[] buf, int bufPtr, int length) throws Exception {
     int n;
-    ByteBuffer b = ByteBuffer.allocate(length);
-    b.put(buf, bufPtr, length);
+    ByteBuffer b = writeBuf;
+    b.clear();
+    b.put(buf, bufPtr, Math.min(length, b.capacity()));
     b.flip();
     try {
       n = channel.write(b);
     } catch (java.io.IOException e) {
       throw new Exception(e.getMessage());
     }
-    b.clear();
     return n;
   }
 
-  synchronized public int select(int interestOps, Integer timeout) throws Exception {
+  // select() waits for the channel to become ready in one direction.  Each
+  // direction has its own selector, so a reader blocked indefinitely does
+  // not hold up a writer.  Once the channel has been closed it throws
+  // rather than returning 0, so that callers waiting forever can tell a
+  // wakeup from close() apart from a spurious one.
+
+  public int select(int interestOps, Integer timeout) throws Exception {
     int n;
     Selector selector;
     if ((interestOps & SelectionKey.OP_READ) != 0) {
@@ -131,6 +160,8 @@ public class SocketDescriptor implements FileDescriptor {
     } catch (java.io.IOException e) {
       throw new Exception(e.getMessage());
     }
+    if (n == 0 && !channel.isOpen())
+      throw new Exception("socket closed");
     return n;
   }
 
@@ -246,4 +277,9 @@ public class SocketDescriptor implements FileDescriptor {
   protected Selector writeSelector;
   protected Selector readSelector;
 
+  private static final int IO_BUF_SIZE = 65536;
+  private static final int MAX_READ_BUF_SIZE = 4194304;
+  private ByteBuffer readBuf = ByteBuffer.allocateDirect(IO_BUF_SIZE);
+  private final ByteBuffer writeBuf = ByteBuffer.allocateDirect(IO_BUF_SIZE);
+
 }
@@ -54,6 +54,13 @@ public class TcpSocket extends Socket {
   }
 
   public TcpSocket(String host, int port) throws Exception {
+    this(host, port, 0);
+  }
+
+  // rcvBufSize, if non-zero, sets SO_RCVBUF.  It must be applied before
+  // connecting for the TCP window scale to take it into account.
+
+  public TcpSocket(String host, int port, int rcvBufSize) throws Exception {
     closeFd = true;
     SocketDescriptor sock = null;
     InetAddress addr = null;
@@ -74,6 +81,9 @@ public class TcpSocket extends Socket {
       throw new SocketException("unable to create socket: "+e.toString());
     }
 
+    if (rcvBufSize > 0)
+      setReceiveBufferSize(sock, rcvBufSize);
+
     /* Attempt to connect to the remote host */
     try {
       result = sock.connect(new InetSocketAddress(addr, port));
@@ -174,6 +184,17 @@ public class TcpSocket extends Socket {
     return true;
   }
 
+  public static boolean setReceiveBufferSize(SocketDescriptor sock,
+                                             int size) {
+    try {
+      sock.channel.socket().setReceiveBufferSize(size);
+    } catch(java.net.SocketException e) {
+      vlog.error("unable to setsockopt SO_RCVBUF: "+e.getMessage());
+      return false;
+    }
+    return true;
+  }
+
   public static boolean isSocket(java.net.Socket sock) {
     return sock.getClass().toString().equals("com.tigervnc.net.Socket");
   }
@@ -0,0 +1,94 @@
+/*
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// BandwidthEstimator estimates the line speed from the bytes a stream
+// consumes while timing is on and the time it spent waiting for the
+// network meanwhile.  Because it counts consumed bytes rather than bytes
+// returned by individual reads, the stream is free to read ahead as far as
+// its buffer allows.
+//
+
+package com.tigervnc.rdr;
+
+public class BandwidthEstimator {
+
+  public BandwidthEstimator() {
+    timeWaitedIn100us = 5; timedKbits = 0;
+  }
+
+  public final boolean isTiming() { return timing; }
+
+  // start() and stop() take the stream position at the start and end of
+  // the timed period.
+
+  public final void start(long pos) {
+    timing = true;
+    startPos = pos;
+    waitedNs = 0;
+
+    // Carry over up to 1s worth of previous rate for smoothing.
+
+    if (timeWaitedIn100us > 10000) {
+      timedKbits = timedKbits * 10000 / timeWaitedIn100us;
+      timeWaitedIn100us = 10000;
+    }
+  }
+
+  public final void stop(long pos) {
+    if (!timing)
+      return;
+    timing = false;
+
+    long newKbits = (pos - startPos) * 8 / 1000;
+    long newTimeWaited = waitedNs / 100000;
+
+    // limit rate to between 10kbit/s and 40Mbit/s
+
+    if (newTimeWaited > newKbits*1000) {
+      newTimeWaited = newKbits*1000;
+    } else if (newTimeWaited < newKbits/4) {
+      newTimeWaited = newKbits/4;
+    }
+
+    timeWaitedIn100us += newTimeWaited;
+    timedKbits += newKbits;
+
+    if (timeWaitedIn100us < timedKbits/2)
+      timeWaitedIn100us = timedKbits/2; // upper limit 20Mbit/s
+  }
+
+  // addWait() records time spent blocked on the network.  It is ignored
+  // unless timing is on.
+
+  public final void addWait(long ns) {
+    if (timing)
+      waitedNs += ns;
+  }
+
+  public final long kbitsPerSecond() {
+    return timedKbits * 10000 / timeWaitedIn100us;
+  }
+
+  public final long timeWaited() { return timeWaitedIn100us; }
+
+  private boolean timing;
+  private long startPos;
+  private long waitedNs;
+  private long timeWaitedIn100us;
+  private long timedKbits;
+}
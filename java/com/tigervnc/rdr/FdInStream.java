@@ -20,6 +20,8 @@
 package com.tigervnc.rdr;
 
 import com.tigervnc.network.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.Selector;
 import java.nio.channels.SelectionKey;
 import java.util.Set;
@@ -28,6 +30,7 @@ import java.util.Iterator;
 public class FdInStream extends InStream {
 
   static final int DEFAULT_BUF_SIZE = 16384;
+  static final int MAX_BUF_SIZE = 4194304;
   static final int minBulkSize = 1024;
 
   public FdInStream(FileDescriptor fd_, int timeoutms_, int bufSize_,
@@ -35,7 +38,7 @@ public class FdInStream extends InStream {
   {
     fd = fd_; closeWhenDone = closeWhenDone_;
     timeoutms = timeoutms_; blockCallback = null;
-    timing = false; timeWaitedIn100us = 5; timedKbits = 0;
+    bandwidth = new BandwidthEstimator();
     bufSize = ((bufSize_ > 0) ? bufSize_ : DEFAULT_BUF_SIZE);
     b = new byte[bufSize];
     ptr = end = offset = 0;
@@ -47,7 +50,7 @@ public class FdInStream extends InStream {
                     int bufSize_)
   {
     fd = fd_; timeoutms = 0; blockCallback = blockCallback_;
-    timing = false; timeWaitedIn100us = 5; timedKbits = 0;
+    bandwidth = new BandwidthEstimator();
     bufSize = ((bufSize_ > 0) ? bufSize_ : DEFAULT_BUF_SIZE);
     b = new byte[bufSize];
     ptr = end = offset = 0;
@@ -84,6 +87,15 @@ public class FdInStream extends InStream {
     timeoutms = timeoutms_;
   }
 
+  // setBlocking() makes reads wait for data for as long as it takes, with
+  // no timeout and no block callback.  This is the default.
+
+  public void setBlocking()
+  {
+    blockCallback = null;
+    timeoutms = -1;
+  }
+
   public void setBlockCallback(FdInStreamBlockCallback blockCallback_)
   {
     blockCallback = blockCallback_;
@@ -93,54 +105,51 @@ public class FdInStream extends InStream {
   public final int pos() { return offset + ptr; }
 
   public final void startTiming() {
-    timing = true;
-
-    // Carry over up to 1s worth of previous rate for smoothing.
-
-    if (timeWaitedIn100us > 10000) {
-      timedKbits = timedKbits * 10000 / timeWaitedIn100us;
-      timeWaitedIn100us = 10000;
-    }
+    bandwidth.start(pos());
   }
 
   public final void stopTiming() {
-    timing = false;
-    if (timeWaitedIn100us < timedKbits/2)
-      timeWaitedIn100us = timedKbits/2; // upper limit 20Mbit/s
+    bandwidth.stop(pos());
   }
 
   public final long kbitsPerSecond() {
-    return timedKbits * 10000 / timeWaitedIn100us;
+    return bandwidth.kbitsPerSecond();
   }
 
-  public final long timeWaited() { return timeWaitedIn100us; }
+  public final long timeWaited() { return bandwidth.timeWaited(); }
+
+  // The buffer starts at bufSize and doubles, up to MAX_BUF_SIZE, whenever
+  // a read fills all the space offered to it.  That means the socket had
+  // more data queued than we could take, so the buffer rather than the
+  // network is limiting how much each read returns.  It settles at about
+  // what the socket accumulates between two reads, which on a busy link is
+  // the bandwidth-delay product.
 
   protected int overrun(int itemSize, int nItems, boolean wait)
   {
     if (itemSize > bufSize)
       throw new Exception("FdInStream overrun: max itemSize exceeded");
 
-    if (end - ptr != 0)
+    if (growBuffer) {
+      bufSize = Math.min(bufSize * 2, MAX_BUF_SIZE);
+      byte[] newb = new byte[bufSize];
+      System.arraycopy(b, ptr, newb, 0, end - ptr);
+      b = newb;
+      growBuffer = false;
+    } else if (end - ptr != 0) {
       System.arraycopy(b, ptr, b, 0, end - ptr);
+    }
 
     offset += ptr;
     end -= ptr;
     ptr = 0;
 
-    int bytes_to_read;
     while (end < itemSize) {
-      bytes_to_read = bufSize - end;
-      if (!timing) {
-        // When not timing, we must be careful not to read too much
-        // extra data into the buffer. Otherwise, the line speed
-        // estimation might stay at zero for a long time: All reads
-        // during timing=1 can be satisfied without calling
-        // readWithTimeoutOrCallback. However, reading only 1 or 2 bytes
-        // bytes is ineffecient.
-        bytes_to_read = Math.min(bytes_to_read, Math.max(itemSize*nItems, 8));
-      }
+      int bytes_to_read = bufSize - end;
       int n = readWithTimeoutOrCallback(b, end, bytes_to_read, wait);
       if (n == 0) return 0;
+      if (n == bytes_to_read && bufSize < MAX_BUF_SIZE)
+        growBuffer = true;
       end += n;
     }
 
@@ -152,18 +161,78 @@ public class FdInStream extends InStream {
 
   protected int readWithTimeoutOrCallback(byte[] buf, int bufPtr, int len, boolean wait) {
     long before = 0;
-    if (timing)
+    if (bandwidth.isTiming())
+      before = System.nanoTime();
+
+    if (!waitForData(wait))
+      return 0;
+
+    int n;
+    try {
+      n = fd.read(buf, bufPtr, len);
+    } catch (Exception e) {
+      throw new SystemException("read:"+e.toString());
+    }
+
+    if (n == 0) throw new EndOfStream();
+
+    if (bandwidth.isTiming())
+      bandwidth.addWait(System.nanoTime() - before);
+
+    return n;
+  }
+
+  // readBuffer() reads into dst, with at most one wait, whatever data is
+  // at hand: first anything already buffered here, and otherwise straight
+  // from the descriptor, without passing through this stream's buffer.  It
+  // returns the number of bytes read, which is only 0 if wait is false.
+
+  public int readBuffer(ByteBuffer dst, boolean wait) {
+    int n = Math.min(end - ptr, dst.remaining());
+    if (n > 0) {
+      dst.put(b, ptr, n);
+      ptr += n;
+      return n;
+    }
+
+    long before = 0;
+    if (bandwidth.isTiming())
       before = System.nanoTime();
 
+    // The descriptor is non-blocking, so try it before waiting on select().
+    while (true) {
+      try {
+        n = fd.read(dst);
+      } catch (IOException e) {
+        throw new SystemException("read:"+e.toString());
+      }
+      if (n < 0) throw new EndOfStream();
+      if (n > 0) break;
+      if (!waitForData(wait))
+        return 0;
+    }
+
+    if (bandwidth.isTiming())
+      bandwidth.addWait(System.nanoTime() - before);
+
+    offset += n;
+    return n;
+  }
+
+  // waitForData() waits until the descriptor is readable, as governed by
+  // the timeout or block callback.  It returns false if wait is false and
+  // there is nothing to read.
+
+  private boolean waitForData(boolean wait) {
     int n;
     while (true) {
       do {
         Integer tv;
 
         if (!wait) {
-          tv = new Integer(0);
+          tv = Integer.valueOf(0);
         } else if (timeoutms != -1) {
-          tv = new Integer(timeoutms);
+          tv = Integer.valueOf(timeoutms);
         } else {
           tv = null;
         }
@@ -176,39 +245,15 @@ public class FdInStream extends InStream {
       } while (n < 0);
 
 
-      if (n > 0) break;
-      if (!wait) return 0;
+      if (n > 0) return true;
+      if (!wait) return false;
+      // With no timeout, select() only returns empty-handed if it was woken
+      // up without the socket being closed, so just wait again.
+      if (timeoutms == -1) continue;
       if (blockCallback == null) throw new TimedOut();
 
       blockCallback.blockCallback();
     }
-
-    try {
-      n = fd.read(buf, bufPtr, len);
-    } catch (Exception e) {
-      throw new SystemException("read:"+e.toString());
-    }
-
-    if (n == 0) throw new EndOfStream();
-
-    if (timing) {
-      long after = System.nanoTime();
-      long newTimeWaited = (after - before) / 100000;
-      int newKbits = n * 8 / 1000;
-
-      // limit rate to between 10kbit/s and 40Mbit/s
-
-      if (newTimeWaited > newKbits*1000) {
-        newTimeWaited = newKbits*1000;
-      } else if (newTimeWaited < newKbits/4) {
-        newTimeWaited = newKbits/4;
-      }
-
-      timeWaitedIn100us += newTimeWaited;
-      timedKbits += newKbits;
-    }
-
-    return n;
   }
 
   private int readWithTimeoutOrCallback(byte[] buf, int bufPtr, int len) {
@@ -233,8 +278,7 @@ public class FdInStream extends InStream {
   private FdInStreamBlockCallback blockCallback;
   private int offset;
   private int bufSize;
+  private boolean growBuffer;
 
-  protected boolean timing;
-  protected long timeWaitedIn100us;
-  protected long timedKbits;
+  protected BandwidthEstimator bandwidth;
 }
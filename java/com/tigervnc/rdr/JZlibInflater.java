@@ -0,0 +1,66 @@
+/*
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// JZlibInflater uses the pure Java zlib bundled as com.jcraft.jzlib, so it
+// behaves the same whatever JRE the viewer runs on.
+//
+
+package com.tigervnc.rdr;
+import com.jcraft.jzlib.*;
+
+public class JZlibInflater extends ZlibInflater {
+
+  public JZlibInflater() {
+    zs = new ZStream();
+    zs.next_in = null;
+    zs.next_in_index = 0;
+    zs.avail_in = 0;
+    if (zs.inflateInit() != JZlib.Z_OK) {
+      zs = null;
+      throw new Exception("JZlibInflater: inflateInit failed");
+    }
+  }
+
+  public void setInput(byte[] buf, int off, int len) {
+    zs.next_in = buf;
+    zs.next_in_index = off;
+    zs.avail_in = len;
+  }
+
+  public int inflate(byte[] buf, int off, int len) {
+    zs.next_out = buf;
+    zs.next_out_index = off;
+    zs.avail_out = len;
+
+    int rc = zs.inflate(JZlib.Z_SYNC_FLUSH);
+    if (rc != JZlib.Z_OK)
+      throw new Exception("ZlibInStream: inflate failed");
+
+    return zs.next_out_index - off;
+  }
+
+  public int getRemaining() {
+    return zs.avail_in;
+  }
+
+  public void end() {
+    zs.inflateEnd();
+  }
+
+  private ZStream zs;
+}
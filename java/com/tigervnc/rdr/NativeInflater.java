@@ -0,0 +1,59 @@
+/*
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// NativeInflater uses java.util.zip.Inflater, so the decompression itself
+// is done by the zlib the JRE was built with.
+//
+
+package com.tigervnc.rdr;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class NativeInflater extends ZlibInflater {
+
+  public NativeInflater() {
+    inflater = new Inflater();
+  }
+
+  public void setInput(byte[] buf, int off, int len) {
+    inflater.setInput(buf, off, len);
+  }
+
+  public int inflate(byte[] buf, int off, int len) {
+    int n;
+    try {
+      n = inflater.inflate(buf, off, len);
+    } catch (DataFormatException e) {
+      throw new Exception("ZlibInStream: inflate failed: "+e.getMessage());
+    }
+    if (n == 0 && (inflater.needsDictionary() || inflater.finished()))
+      throw new Exception("ZlibInStream: inflate failed");
+    return n;
+  }
+
+  public int getRemaining() {
+    return inflater.getRemaining();
+  }
+
+  public void end() {
+    inflater.end();
+  }
+
+  private Inflater inflater;
+}
@@ -29,14 +29,16 @@ import com.tigervnc.network.*;
 
 public class TLSInStream extends InStream {
 
-  static final int defaultBufSize = 16384;
+  // Room for several records, so that each read can decrypt everything
+  // which has arrived in one go.
+  static final int defaultBufSize = 65536;
 
   public TLSInStream(InStream _in, SSLEngineManager _manager) {
     in = (FdInStream)_in;
     manager = _manager;
     offset = 0;
     SSLSession session = manager.getSession();
-    bufSize = session.getApplicationBufferSize();
+    bufSize = Math.max(defaultBufSize, session.getApplicationBufferSize());
     b = new byte[bufSize];
     ptr = end = start = 0;
   }
@@ -89,12 +91,8 @@ public class TLSInStream extends InStream {
   {
     int n = -1;
 
-    //n = in.check(1, 1, wait);
-    //if (n == 0)
-    //  return 0;
-
     try {
-      n = manager.read(buf, bufPtr, len);
+      n = manager.read(buf, bufPtr, len, wait);
     } catch (java.io.IOException e) {
       e.printStackTrace();
     }
@@ -18,38 +18,46 @@
  */
 
 //
-// A ZlibInStream reads from a zlib.io.InputStream
+// A ZlibInStream reads a zlib stream from an underlying InStream.  The
+// decompression is done by a ZlibInflater, which is JZlib unless another
+// is given.
 //
 
 package com.tigervnc.rdr;
-import com.jcraft.jzlib.*;
 
 public class ZlibInStream extends InStream {
 
   static final int defaultBufSize = 16384;
 
-  public ZlibInStream(int bufSize_)
+  // Reads of at least this many bytes are inflated straight into the
+  // caller's array.
+  static final int directReadMin = 4096;
+
+  public ZlibInStream(int bufSize_, ZlibInflater inflater_)
   {
     bufSize = bufSize_;
     b = new byte[bufSize];
     bytesIn = offset = 0;
-    zs = new ZStream();
-    zs.next_in = null;
-    zs.next_in_index = 0;
-    zs.avail_in = 0;
-    if (zs.inflateInit() != JZlib.Z_OK) {
-      zs = null;
-      throw new Exception("ZlinInStream: inflateInit failed");
-    }
+    inflater = inflater_;
     ptr = end = start = 0;
   }
 
+  public ZlibInStream(int bufSize_)
+  {
+    this(bufSize_, new JZlibInflater());
+  }
+
+  public ZlibInStream(ZlibInflater inflater_)
+  {
+    this(defaultBufSize, inflater_);
+  }
+
   public ZlibInStream() { this(defaultBufSize); }
 
   protected void finalize() throws Throwable {
     try {
       b = null;
-      zs.inflateEnd();
+      inflater.end();
     } finally {
       super.finalize();
     }
@@ -104,6 +112,30 @@ public class ZlibInStream extends InStream {
     return nItems;
   }
 
+  // readBytes() copies out whatever is already inflated and, for large
+  // reads, inflates the rest directly into data rather than by way of b.
+
+  public void readBytes(byte[] data, int dataPtr, int length)
+  {
+    if (length < directReadMin || underlying == null) {
+      super.readBytes(data, dataPtr, length);
+      return;
+    }
+
+    int n = Math.min(end - ptr, length);
+    System.arraycopy(b, ptr, data, dataPtr, n);
+    ptr += n;
+    dataPtr += n;
+    length -= n;
+
+    while (length > 0) {
+      n = decompress(data, dataPtr, length, true);
+      offset += n;
+      dataPtr += n;
+      length -= n;
+    }
+  }
+
   // decompress() calls the decompressor once.  Note that this won't
   // necessarily generate any output data - it may just consume some input
   // data.  Returns false if wait is false and we would block on the underlying
@@ -111,33 +143,46 @@ public class ZlibInStream extends InStream {
 
   private boolean decompress(boolean wait)
   {
-    zs.next_out = b;
-    zs.next_out_index = end;
-    zs.avail_out = start + bufSize - end;
-
-    int n = underlying.check(1, 1, wait);
-    if (n == 0) return false;
-    zs.next_in = underlying.getbuf();
-    zs.next_in_index = underlying.getptr();
-    zs.avail_in = underlying.getend() - underlying.getptr();
-    if (zs.avail_in > bytesIn)
-      zs.avail_in = bytesIn;
-
-    int rc = zs.inflate(JZlib.Z_SYNC_FLUSH);
-    if (rc != JZlib.Z_OK) {
-      throw new Exception("ZlibInStream: inflate failed");
+    int n = decompress(b, end, start + bufSize - end, wait);
+    if (n < 0) return false;
+    end += n;
+    return true;
+  }
+
+  // This form decompresses into len bytes of out, starting at off.  It
+  // returns the number of bytes written, or -1 if it would block.
+
+  private int decompress(byte[] out, int off, int len, boolean wait)
+  {
+    // Once all of our input has been consumed the inflater may still hold
+    // output, so only insist on underlying data while some is due.
+    if (bytesIn > 0) {
+      int n = underlying.check(1, 1, wait);
+      if (n == 0) return -1;
     }
+    int inPtr = underlying.getptr();
+    int avail = underlying.getend() - inPtr;
+    if (avail > bytesIn)
+      avail = bytesIn;
+    inflater.setInput(underlying.getbuf(), inPtr, avail);
+
+    int n = inflater.inflate(out, off, len);
+    int used = avail - inflater.getRemaining();
+
+    // Neither input nor output means the stream is broken or cut short;
+    // trying again would not change that.
+    if (n == 0 && used == 0)
+      throw new Exception("ZlibInStream: inflate failed");
 
-    bytesIn -= zs.next_in_index - underlying.getptr();
-    end = zs.next_out_index;
-    underlying.setptr(zs.next_in_index);
-    return true;
+    bytesIn -= used;
+    underlying.setptr(inPtr + used);
+    return n;
   }
 
   private InStream underlying;
   private int bufSize;
   private int offset;
-  private com.jcraft.jzlib.ZStream zs;
+  private ZlibInflater inflater;
   private int bytesIn;
   private int start;
 }
@@ -0,0 +1,75 @@
+/*
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// ZlibInflater is the decompressor behind a ZlibInStream.  There are two:
+//
+//   JZLIB   the pure Java inflater bundled as com.jcraft.jzlib
+//   NATIVE  java.util.zip.Inflater, which calls the platform's zlib
+//
+// Either works on one long-lived zlib stream, fed a piece of input at a
+// time straight from the underlying stream's buffer.
+//
+
+package com.tigervnc.rdr;
+
+public abstract class ZlibInflater {
+
+  public static final int JZLIB = 0;
+  public static final int NATIVE = 1;
+
+  public static final String[] backendNames = { "JZlib", "Native" };
+
+  // backendNum() returns the backend of the given name, or -1 if there is
+  // none.
+
+  public static int backendNum(String name) {
+    for (int i = 0; i < backendNames.length; i++)
+      if (backendNames[i].equalsIgnoreCase(name))
+        return i;
+    return -1;
+  }
+
+  public static ZlibInflater create(int backend) {
+    switch (backend) {
+    case NATIVE:
+      return new NativeInflater();
+    default:
+      return new JZlibInflater();
+    }
+  }
+
+  // setInput() gives the inflater len bytes of input, starting at off in
+  // buf.  Any input left over from before is forgotten, so the caller
+  // passes it again.
+
+  abstract public void setInput(byte[] buf, int off, int len);
+
+  // inflate() decompresses as much of the input as it can into buf,
+  // starting at off and writing no more than len bytes.  It returns the
+  // number of bytes written.
+
+  abstract public int inflate(byte[] buf, int off, int len);
+
+  // getRemaining() returns the number of input bytes not yet consumed.
+
+  abstract public int getRemaining();
+
+  // end() frees the inflater's resources.
+
+  abstract public void end();
+}
@@ -64,7 +64,11 @@ abstract public class CConnection extends CMsgHandler {
     case RFBSTATE_SECURITY:         processSecurityMsg();       break;
     case RFBSTATE_SECURITY_RESULT:  processSecurityResultMsg(); break;
     case RFBSTATE_INITIALISATION:   processInitMsg();           break;
-    case RFBSTATE_NORMAL:           reader_.readMsg();          break;
+    case RFBSTATE_NORMAL:
+      if (recorder != null)
+        recorder.checkPixelFormat(is.pos(), cp.pf());
+      reader_.readMsg();
+      break;
     case RFBSTATE_UNINITIALISED:
       throw new Exception("CConnection.processMsg: not initialised yet?");
     default:
@@ -243,6 +247,8 @@ abstract public class CConnection extends CMsgHandler {
     state_ = RFBSTATE_INITIALISATION;
     reader_ = new CMsgReaderV3(this, is);
     writer_ = new CMsgWriterV3(cp, os);
+    if (os instanceof TLSOutStream)
+      writer_.setFlushDelay(cp.tlsWriteDelay);
     vlog.debug("Authentication success!");
     authSuccess();
     writer_.writeClientInit(shared);
@@ -270,6 +276,34 @@ abstract public class CConnection extends CMsgHandler {
     os = os_;
   }
 
+  // startRecording() copies everything read from the server from now on,
+  // together with the pixel format it is decoded with, into a file that
+  // SessionInStream can play back.  It is meant to be called at the end of
+  // serverInit().
+
+  public void startRecording(String filename)
+  {
+    recorder = new SessionRecorder(filename, cp);
+    is = new RecordingInStream(is, recorder);
+    reader_.setInStream(is);
+    vlog.info("Recording session to "+filename);
+  }
+
+  // cleanup() releases what the connection holds beyond memory, such as
+  // decoder threads, the delayed flush timer and the session recording.
+  // It is called from the RFB thread once no more messages will be
+  // processed.
+
+  public void cleanup()
+  {
+    if (reader_ != null)
+      reader_.close();
+    if (writer_ != null)
+      writer_.close();
+    if (recorder != null)
+      recorder.close();
+  }
+
   // setShared sets the value of the shared flag which will be sent to the
   // server upon initialisation.
   public final void setShared(boolean s) { shared = s; }
@@ -377,6 +411,7 @@ abstract public class CConnection extends CMsgHandler {
   OutStream os;
   CMsgReaderV3 reader_;
   CMsgWriterV3 writer_;
+  SessionRecorder recorder;
   boolean shared;
   public CSecurity csecurity;
   public SecurityClient security;
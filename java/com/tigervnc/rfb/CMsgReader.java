@@ -79,9 +79,29 @@ abstract public class CMsgReader {
 
   protected void readFramebufferUpdateEnd()
   {
+    flushDecoders();
     handler.framebufferUpdateEnd();
   }
 
+  // flushDecoders() makes sure that every decoder has finished writing to
+  // the framebuffer.
+
+  protected void flushDecoders()
+  {
+    for (int i = 0; i < decoders.length; i++)
+      if (decoders[i] != null)
+        decoders[i].flush();
+  }
+
+  // close() releases the decoders once no more messages will be read.
+
+  public void close()
+  {
+    for (int i = 0; i < decoders.length; i++)
+      if (decoders[i] != null)
+        decoders[i].close();
+  }
+
   protected void readRect(Rect r, int encoding)
   {
     if ((r.br.x > handler.cp.width) || (r.br.y > handler.cp.height)) {
@@ -94,6 +114,12 @@ abstract public class CMsgReader {
     if (r.is_empty())
       vlog.error("Ignoring zero size rect");
 
+    // Rectangles must reach the framebuffer in protocol order, so let any
+    // other decoder finish first.
+    for (int i = 0; i < decoders.length; i++)
+      if (i != encoding && decoders[i] != null)
+        decoders[i].flush();
+
     handler.beginRect(r, encoding);
 
     if (encoding == Encodings.encodingCopyRect) {
@@ -127,7 +153,7 @@ abstract public class CMsgReader {
     int[] data = new int[data_len];
     byte[] mask = new byte[mask_len];
 
-    is.readPixels(data, data_len, (handler.cp.pf().bpp/8), handler.cp.pf().bigEndian);
+    handler.cp.converter().readPixels(is, data, 0, data_len);
     is.readBytes(mask, 0, mask_len);
 
     handler.setCursor(width, height, hotspot, data, mask);
@@ -165,6 +191,7 @@ abstract public class CMsgReader {
   abstract public void readMsg();
 
   public InStream getInStream() { return is; }
+  public void setInStream(InStream is_) { is = is_; }
 
   public int imageBufIdealSize;
 
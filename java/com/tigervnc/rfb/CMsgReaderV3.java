@@ -68,6 +68,10 @@ public class CMsgReaderV3 extends CMsgReader {
       int h = is.readU16();
       int encoding = is.readS32();
 
+      // Pseudo-encodings may resize the framebuffer or touch the cursor.
+      if (encoding < 0)
+        flushDecoders();
+
       switch (encoding) {
       case Encodings.pseudoEncodingDesktopSize:
         handler.setDesktopSize(w, h);
@@ -93,7 +97,7 @@ public class CMsgReaderV3 extends CMsgReader {
       }
 
       nUpdateRectsLeft--;
-      if (nUpdateRectsLeft == 0) handler.framebufferUpdateEnd();
+      if (nUpdateRectsLeft == 0) readFramebufferUpdateEnd();
     }
   }
 
@@ -139,16 +139,20 @@ abstract public class CMsgWriter {
 
   synchronized public void writePointerEvent(Point pos, int buttonMask)
   {
-    Point p = new Point(pos.x,pos.y);
-    if (p.x < 0) p.x = 0;
-    if (p.y < 0) p.y = 0;
-    if (p.x >= cp.width) p.x = cp.width - 1;
-    if (p.y >= cp.height) p.y = cp.height - 1;
+    writePointerEvent(pos.x, pos.y, buttonMask);
+  }
+
+  synchronized public void writePointerEvent(int x, int y, int buttonMask)
+  {
+    if (x < 0) x = 0;
+    if (y < 0) y = 0;
+    if (x >= cp.width) x = cp.width - 1;
+    if (y >= cp.height) y = cp.height - 1;
 
     startMsg(MsgTypes.msgTypePointerEvent);
     os.writeU8(buttonMask);
-    os.writeU16(p.x);
-    os.writeU16(p.y);
+    os.writeU16(x);
+    os.writeU16(y);
     endMsg();
   }
 
@@ -163,6 +167,25 @@ abstract public class CMsgWriter {
     endMsg();
   }
 
+  // startBatch() and endBatch() bracket a run of messages which should be
+  // sent together.  endMsg() leaves them in the output buffer, and the
+  // outermost endBatch() flushes them all at once.  Batches may nest.
+
+  synchronized public void startBatch() {
+    batchDepth++;
+  }
+
+  synchronized public void endBatch() {
+    if (batchDepth <= 0)
+      throw new Exception("endBatch() without startBatch()");
+    if (--batchDepth == 0)
+      flush();
+  }
+
+  synchronized public void flush() {
+    os.flush();
+  }
+
   abstract public void startMsg(int type);
   abstract public void endMsg();
 
@@ -175,5 +198,6 @@ abstract public class CMsgWriter {
 
   ConnParams cp;
   OutStream os;
+  protected int batchDepth;
   static LogWriter vlog = new LogWriter("CMsgWriter");
 }
@@ -32,14 +32,75 @@ public class CMsgWriterV3 extends CMsgWriter {
     endMsg();
   }
 
+  // setFlushDelay() lets key and pointer events sit in the output buffer
+  // for up to delay milliseconds, so that those produced close together are
+  // written out at once.  Any other message is a barrier which flushes them
+  // along with itself.
+
+  synchronized public void setFlushDelay(int delay) {
+    flushDelay = delay;
+    if (flushDelay <= 0)
+      flushPending();
+  }
+
   synchronized public void startMsg(int type) {
+    msgType = type;
     os.writeU8(type);
   }
 
   synchronized public void endMsg() {
+    if (batchDepth > 0)
+      return;
+
+    if (flushDelay <= 0 || (msgType != MsgTypes.msgTypeKeyEvent &&
+                            msgType != MsgTypes.msgTypePointerEvent)) {
+      flush();
+      return;
+    }
+
+    if (flushScheduled)
+      return;
+    flushScheduled = true;
+    getFlushTimer().schedule(new TimerTask() {
+      public void run() {
+        try {
+          flushPending();
+        } catch (com.tigervnc.rdr.Exception e) {
+          // The reading side will notice the connection has gone
+          vlog.error("Delayed flush failed: "+e.getMessage());
+        }
+      }
+    }, flushDelay);
+  }
+
+  synchronized public void flush() {
+    flushScheduled = false;
     os.flush();
   }
 
+  synchronized private void flushPending() {
+    if (flushScheduled && batchDepth == 0)
+      flush();
+  }
+
+  synchronized private Timer getFlushTimer() {
+    if (flushTimer == null)
+      flushTimer = new Timer("CMsgWriterV3 flush", true);
+    return flushTimer;
+  }
+
+  // close() stops the flush timer.  Any later message is written out
+  // straight away.
+
+  synchronized public void close() {
+    flushDelay = 0;
+    flushScheduled = false;
+    if (flushTimer != null) {
+      flushTimer.cancel();
+      flushTimer = null;
+    }
+  }
+
   synchronized public void writeSetDesktopSize(int width, int height,
                                   ScreenSet layout)
 	{
@@ -105,4 +166,10 @@ public class CMsgWriterV3 extends CMsgWriter {
 
     endMsg();
   }
+
+  private int msgType;
+  private int flushDelay;
+  private boolean flushScheduled;
+
+  private Timer flushTimer;
 }
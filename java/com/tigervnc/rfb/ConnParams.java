@@ -37,6 +37,8 @@ public class ConnParams {
     customCompressLevel = false; compressLevel = 6;
     noJpeg = false; qualityLevel = -1; fineQualityLevel = -1;
     subsampling = "SUBSAMP_UNDEFINED";
+    parallelTightDecoding = false;
+    zlibInflater = ZlibInflater.JZLIB;
     name_ = null; nEncodings_ = 0; encodings_ = null;
     currentEncoding_ = Encodings.encodingRaw; verStrPos = 0;
     screenLayout = new ScreenSet();
@@ -101,6 +103,16 @@ public class ConnParams {
     if (pf.bpp != 8 && pf.bpp != 16 && pf.bpp != 32) {
       throw new Exception("setPF: not 8, 16 or 32 bpp?");
     }
+    converter_ = null;
+  }
+
+  // converter() returns the converter from the server's pixel format to the
+  // framebuffer's, which the decoders share.
+
+  public PixelConverter converter() {
+    if (converter_ == null)
+      converter_ = new PixelConverter(pf_, PixelBuffer.colorModel(pf_));
+    return converter_;
   }
 
   public String name() { return name_; }
@@ -204,7 +216,16 @@ public class ConnParams {
   public int fineQualityLevel;
   public String subsampling;
 
+  // Client-side decoding options
+  public boolean parallelTightDecoding;
+  public int zlibInflater;
+
+  // Milliseconds for which input events may be held back over TLS, so that
+  // a burst of them is sent in one record.  0 sends each straight away.
+  public int tlsWriteDelay;
+
   private PixelFormat pf_;
+  private PixelConverter converter_;
   private String name_;
   private int nEncodings_;
   private int[] encodings_;
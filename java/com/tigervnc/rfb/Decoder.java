@@ -22,6 +22,17 @@ abstract public class Decoder {
 
   abstract public void readRect(Rect r, CMsgHandler handler);
 
+  // flush() is called before anything else touches the framebuffer.  A
+  // decoder which defers work past the end of readRect() must complete it
+  // here.
+
+  public void flush() {}
+
+  // close() releases anything the decoder holds besides memory, such as
+  // threads.  It is called once the connection is finished with.
+
+  public void close() {}
+
   static public boolean supported(int encoding)
   {
 /*
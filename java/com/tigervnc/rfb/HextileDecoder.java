@@ -16,20 +16,34 @@
  * USA.
  */
 
+//
+// Each tile is either drawn directly, with fillRect() for its background and
+// each of its subrects, or composed in the image buffer.  Direct drawing is
+// used for plain background tiles, which are merged with any neighbour of
+// the same colour, and for tiles with only a few subrects which do not
+// follow a composed tile.  Composed tiles which lie next to each other in a
+// row are sent together in one imageRect(), so the framebuffer is called on
+// a few times per row of tiles rather than once per tile.
+//
+
 package com.tigervnc.rfb;
 
 import com.tigervnc.rdr.*;
 
 public class HextileDecoder extends Decoder {
 
+  // Tiles with no more subrects than this are drawn directly.
+  static final int maxDirectSubrects = 2;
+
   public HextileDecoder(CMsgReader reader_) { reader = reader_; }
 
   public void readRect(Rect r, CMsgHandler handler) {
     InStream is = reader.getInStream();
-    int bytesPerPixel = handler.cp.pf().bpp / 8;
-    boolean bigEndian = handler.cp.pf().bigEndian;
+    PixelConverter pc = handler.cp.converter();
+    int bytesPerPixel = pc.bytesPerPixel();
 
-    int[] buf = reader.getImageBuf(16 * 16 * 4);
+    stride = r.width();
+    int[] buf = reader.getImageBuf(stride * 16);
 
     Rect t = new Rect();
     int bg = 0;
@@ -38,64 +52,155 @@ public class HextileDecoder extends Decoder {
     for (t.tl.y = r.tl.y; t.tl.y < r.br.y; t.tl.y += 16) {
 
       t.br.y = Math.min(r.br.y, t.tl.y + 16);
+      spanStart = solidStart = solidEnd = -1;
 
       for (t.tl.x = r.tl.x; t.tl.x < r.br.x; t.tl.x += 16) {
 
         t.br.x = Math.min(r.br.x, t.tl.x + 16);
+        int tw = t.width();
+        int th = t.height();
+        int base = t.tl.x - r.tl.x;
 
         int tileType = is.readU8();
 
         if ((tileType & Hextile.raw) != 0) {
-          is.readPixels(buf, t.area(), bytesPerPixel, bigEndian);
-          handler.imageRect(t, buf);
+          flushSolid(t, handler);
+          if (spanStart < 0)
+            spanStart = t.tl.x;
+          for (int y = 0; y < th; y++)
+            pc.readPixels(is, buf, base + y * stride, tw);
           continue;
         }
 
         if ((tileType & Hextile.bgSpecified) != 0)
-          bg = is.readPixel(bytesPerPixel, bigEndian);
-
-        int len = t.area();
-        int ptr = 0;
-        while (len-- > 0) buf[ptr++] = bg;
+          bg = pc.readPixel(is);
 
         if ((tileType & Hextile.fgSpecified) != 0)
-          fg = is.readPixel(bytesPerPixel, bigEndian);
-
-        if ((tileType & Hextile.anySubrects) != 0) {
-          int nSubrects = is.readU8();
-
-          for (int i = 0; i < nSubrects; i++) {
+          fg = pc.readPixel(is);
+
+        int nSubrects = 0;
+        if ((tileType & Hextile.anySubrects) != 0)
+          nSubrects = is.readU8();
+
+        if (nSubrects == 0) {
+          flushSpan(t, r, buf, handler);
+          if (solidEnd != t.tl.x || solidPix != bg) {
+            flushSolid(t, handler);
+            solidStart = t.tl.x;
+            solidPix = bg;
+          }
+          solidEnd = t.br.x;
+          continue;
+        }
 
-            if ((tileType & Hextile.subrectsColoured) != 0)
-              fg = is.readPixel(bytesPerPixel, bigEndian);
+        // A tile which would break up a run of composed tiles is composed
+        // too, as drawing it directly would not save any calls.
+        boolean direct = (nSubrects <= maxDirectSubrects && spanStart < 0);
+        flushSolid(t, handler);
+        if (direct) {
+          flushSpan(t, r, buf, handler);
+          handler.fillRect(t, bg);
+        } else {
+          if (spanStart < 0)
+            spanStart = t.tl.x;
+          int ptr = base;
+          for (int y = 0; y < th; y++) {
+            java.util.Arrays.fill(buf, ptr, ptr + tw, bg);
+            ptr += stride;
+          }
+        }
 
-            int xy = is.readU8();
-            int wh = is.readU8();
+        // The subrects are taken straight out of the stream's buffer, as
+        // many at a time as it holds.
+        boolean coloured = (tileType & Hextile.subrectsColoured) != 0;
+        int itemSize = coloured ? bytesPerPixel + 2 : 2;
+        while (nSubrects > 0) {
+          int n = is.check(itemSize, nSubrects);
+          byte[] b = is.getbuf();
+          int p = is.getptr();
+          nSubrects -= n;
+
+          while (n-- > 0) {
+            if (coloured) {
+              fg = pc.convertPixel(b, p);
+              p += bytesPerPixel;
+            }
+            int xy = b[p++] & 0xff;
+            int wh = b[p++] & 0xff;
 
-/*
-            Rect s = new Rect();
-            s.tl.x = t.tl.x + ((xy >> 4) & 15);
-            s.tl.y = t.tl.y + (xy & 15);
-            s.br.x = s.tl.x + ((wh >> 4) & 15) + 1;
-            s.br.y = s.tl.y + (wh & 15) + 1;
-*/
             int x = ((xy >> 4) & 15);
             int y = (xy & 15);
             int w = ((wh >> 4) & 15) + 1;
             int h = (wh & 15) + 1;
-            ptr = y * t.width() + x;
-            int rowAdd = t.width() - w;
+
+            if (x + w > tw || y + h > th)
+              throw new Exception("HextileDecoder: subrect outside tile");
+
+            if (direct) {
+              subrect.tl.x = t.tl.x + x;
+              subrect.tl.y = t.tl.y + y;
+              subrect.br.x = subrect.tl.x + w;
+              subrect.br.y = subrect.tl.y + h;
+              handler.fillRect(subrect, fg);
+              continue;
+            }
+
+            int ptr = base + y * stride + x;
             while (h-- > 0) {
-              len = w;
-              while (len-- > 0) buf[ptr++] = fg;
-              ptr += rowAdd;
+              java.util.Arrays.fill(buf, ptr, ptr + w, fg);
+              ptr += stride;
             }
           }
+
+          is.setptr(p);
         }
-        handler.imageRect(t, buf);
+      }
+
+      t.tl.x = r.br.x;
+      flushSpan(t, r, buf, handler);
+      flushSolid(t, handler);
+    }
+  }
+
+  // flushSpan() sends the composed tiles to the left of tile t.  They are
+  // held in buf with a row length of stride, so unless they span the whole
+  // rectangle they are first packed down to rows of their own width.
+
+  private void flushSpan(Rect t, Rect r, int[] buf, CMsgHandler handler) {
+    if (spanStart < 0)
+      return;
+
+    int w = t.tl.x - spanStart;
+    if (w != stride) {
+      int src = spanStart - r.tl.x;
+      for (int y = 0; y < t.height(); y++) {
+        System.arraycopy(buf, src, buf, y * w, w);
+        src += stride;
       }
     }
+
+    span.setXYWH(spanStart, t.tl.y, w, t.height());
+    handler.imageRect(span, buf);
+    spanStart = -1;
+  }
+
+  // flushSolid() fills in the background tiles of one colour to the left of
+  // tile t.
+
+  private void flushSolid(Rect t, CMsgHandler handler) {
+    if (solidStart < 0)
+      return;
+
+    span.setXYWH(solidStart, t.tl.y, solidEnd - solidStart, t.height());
+    handler.fillRect(span, solidPix);
+    solidStart = solidEnd = -1;
   }
 
   CMsgReader reader;
+
+  private int stride;
+  private int spanStart;
+  private int solidStart, solidEnd, solidPix;
+  private Rect span = new Rect();
+  private Rect subrect = new Rect();
 }
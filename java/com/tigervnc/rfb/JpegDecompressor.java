@@ -0,0 +1,88 @@
+/*
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// JpegDecompressor decodes JPEG rectangles into int-backed RGB tiles.  It
+// keeps a single ImageReader for its whole lifetime, so an instance must
+// only be used by one thread at a time.
+//
+
+package com.tigervnc.rfb;
+
+import java.awt.image.*;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.*;
+import javax.imageio.stream.*;
+
+public class JpegDecompressor {
+
+  public JpegDecompressor() {
+    Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+    if (!readers.hasNext())
+      throw new Exception("JpegDecompressor: no JPEG decoder available");
+    reader = readers.next();
+    param = reader.getDefaultReadParam();
+  }
+
+  // decompress() decodes jpegBufLen bytes of JPEG data, which must describe
+  // an image the size of r, into a new TYPE_INT_RGB tile.
+
+  public BufferedImage decompress(byte[] jpegBuf, int jpegBufLen, Rect r) {
+    int w = r.width();
+    int h = r.height();
+    BufferedImage tile = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+    ImageInputStream iis =
+      new MemoryCacheImageInputStream(new ByteArrayInputStream(jpegBuf, 0,
+                                                               jpegBufLen));
+    try {
+      reader.setInput(iis, true, true);
+      if (reader.getWidth(0) != w || reader.getHeight(0) != h)
+        throw new Exception("JpegDecompressor: image is "+reader.getWidth(0)+
+                            "x"+reader.getHeight(0)+", expected "+w+"x"+h);
+
+      ImageTypeSpecifier rawType = reader.getRawImageType(0);
+      if (rawType != null && rawType.getNumBands() == 1) {
+        // Letting ImageIO convert greyscale to RGB changes its gamma, so
+        // expand the samples by hand.
+        Raster grey = reader.readRaster(0, null);
+        int[] data = ((DataBufferInt)tile.getRaster().getDataBuffer()).getData();
+        grey.getSamples(0, 0, w, h, 0, data);
+        for (int i = 0; i < w * h; i++) {
+          int v = data[i];
+          data[i] = v << 16 | v << 8 | v;
+        }
+      } else {
+        param.setDestination(tile);
+        reader.read(0, param);
+      }
+    } catch (IOException e) {
+      throw new Exception("Error decoding JPEG data: "+e.getMessage());
+    } finally {
+      param.setDestination(null);
+      reader.setInput(null);
+      try {
+        iis.close();
+      } catch (IOException e) { }
+    }
+    return tile;
+  }
+
+  private ImageReader reader;
+  private ImageReadParam param;
+}
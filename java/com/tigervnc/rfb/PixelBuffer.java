@@ -24,6 +24,7 @@
 package com.tigervnc.rfb;
 
 import java.awt.image.*;
+import java.nio.ByteOrder;
 
 public class PixelBuffer {
 
@@ -31,38 +32,37 @@ public class PixelBuffer {
     setPF(new PixelFormat());
   }
 
+  // True colour pixels are stored as 0xRRGGBB, whatever the server's format,
+  // and converted to that by the decoders (see PixelConverter).  Colour map
+  // pixels are stored as indices.
+
+  public static final DirectColorModel rgbColorModel =
+    new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+
+  // directPF is the pixel format laid out just as true colour pixels are
+  // stored, in the platform's byte order.  Pixels received in it can be
+  // copied into the framebuffer without any conversion.
+
+  public static final PixelFormat directPF =
+    new PixelFormat(32, 24, ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN,
+                    true, 255, 255, 255, 16, 8, 0);
+
+  // colorModel() returns the model of the stored pixels for pixel format
+  // pf.  For colour map formats it returns null, as the actual colours are
+  // only known to the framebuffer.
+
+  public static ColorModel colorModel(PixelFormat pf) {
+    return pf.trueColour ? rgbColorModel : null;
+  }
+
   public void setPF(PixelFormat pf) {
     if (!(pf.bpp == 32) && !(pf.bpp == 16) && !(pf.bpp == 8))
       throw new Exception("Internal error: bpp must be 8, 16, or 32 in PixelBuffer ("+pf.bpp+")");
     format = pf;
-    switch (pf.depth) {
-    case  3:
-      // Fall-through to depth 8
-    case  6:
-      // Fall-through to depth 8
-    case  8:
-      if (!pf.trueColour) {
-        if (cm == null)
-          cm = new IndexColorModel(8, 256, new byte[256], new byte[256], new byte[256]);
-        break;
-      }
-      int rmask = pf.redMax << pf.redShift;
-      int gmask = pf.greenMax << pf.greenShift;
-      int bmask = pf.blueMax << pf.blueShift;
-      cm = new DirectColorModel(8, rmask, gmask, bmask);
-      break;
-    case 16:
-      cm = new DirectColorModel(32, 0xF800, 0x07C0, 0x003E);
-      break;
-    case 24:
-      cm = new DirectColorModel(32, (0xff << 16), (0xff << 8), 0xff);
-      break;
-    case 32:
-      cm = new DirectColorModel(32, (0xff << pf.redShift),
-        (0xff << pf.greenShift), (0xff << pf.blueShift));
-      break;
-    default:
-      throw new Exception("Unsupported color depth ("+pf.depth+")");
+    if (pf.trueColour) {
+      cm = rgbColorModel;
+    } else if (!(cm instanceof IndexColorModel)) {
+      cm = new IndexColorModel(8, 256, new byte[256], new byte[256], new byte[256]);
     }
   }
   public PixelFormat getPF() { return format; }
@@ -0,0 +1,337 @@
+/*
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// PixelConverter turns pixels in a server's pixel format into pixels of the
+// framebuffer's ColorModel.  Everything that depends on the pair of formats
+// is worked out when the converter is made:
+//
+//   8 and 16 bpp   a table holding the result for every possible pixel
+//   32 bpp, 888    shifts only, or a plain copy if the server's format
+//                  matches the framebuffer's
+//   32 bpp, other  a table for each colour component
+//
+// A converter for a DirectColorModel rescales each component to the
+// model's masks.  Anything else (an IndexColorModel, or null) keeps pixel
+// values as they are, as is right for colour map formats.
+//
+// Converters are not changed once made, so they may be shared between
+// threads.
+//
+
+package com.tigervnc.rfb;
+
+import java.awt.image.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.tigervnc.rdr.*;
+
+public class PixelConverter {
+
+  static final int identityKernel = 0;
+  static final int tableKernel = 1;
+  static final int shiftKernel = 2;
+  static final int componentKernel = 3;
+  static final int directKernel = 4;
+
+  // Tight sends the pixels of 888 formats as R, G and B bytes.
+  static final PixelFormat rgbPF =
+    new PixelFormat(32, 24, true, true, 255, 255, 255, 16, 8, 0);
+
+  public PixelConverter(PixelFormat pf, ColorModel cm) {
+    this(pf, pf.bpp / 8, cm);
+  }
+
+  // This form reads pixels of bytesPerPixel bytes, which may be fewer than
+  // the format's.  Three byte pixels are taken to hold the least
+  // significant bytes of the pixel value, or the most significant ones if
+  // the colours do not fit in the others.
+
+  public PixelConverter(PixelFormat pf, int bytesPerPixel_, ColorModel cm_) {
+    srcPF = pf;
+    cm = cm_;
+    bytesPerPixel = bytesPerPixel_;
+    bigEndian = pf.bigEndian;
+    valueShift = (bytesPerPixel == 3 && !fitsInLS3Bytes(pf)) ? 8 : 0;
+
+    rs = pf.redShift;
+    gs = pf.greenShift;
+    bs = pf.blueShift;
+    rMax = pf.redMax;
+    gMax = pf.greenMax;
+    bMax = pf.blueMax;
+
+    if (!pf.trueColour || !(cm instanceof DirectColorModel)) {
+      kernel = identityKernel;
+      alpha = 0;
+      redTable = greenTable = blueTable = null;
+      drs = dgs = dbs = 0;
+    } else {
+      DirectColorModel dcm = (DirectColorModel)cm;
+      alpha = dcm.hasAlpha() ? dcm.getAlphaMask() : 0;
+      drs = Integer.numberOfTrailingZeros(dcm.getRedMask());
+      dgs = Integer.numberOfTrailingZeros(dcm.getGreenMask());
+      dbs = Integer.numberOfTrailingZeros(dcm.getBlueMask());
+      if (rMax == 255 && gMax == 255 && bMax == 255 &&
+          dcm.getRedMask() == 0xff << drs &&
+          dcm.getGreenMask() == 0xff << dgs &&
+          dcm.getBlueMask() == 0xff << dbs) {
+        // Pixel values of the same layout need no conversion at all.  Any
+        // bits outside the colour masks are left alone, as the ColorModel
+        // ignores them.
+        kernel = (rs == drs && gs == dgs && bs == dbs && alpha == 0) ?
+                 directKernel : shiftKernel;
+        redTable = greenTable = blueTable = null;
+      } else {
+        kernel = componentKernel;
+        redTable = componentTable(rMax, dcm.getRedMask());
+        greenTable = componentTable(gMax, dcm.getGreenMask());
+        blueTable = componentTable(bMax, dcm.getBlueMask());
+      }
+    }
+
+    if (bytesPerPixel <= 2) {
+      table = new int[1 << (bytesPerPixel * 8)];
+      for (int p = 0; p < table.length; p++)
+        table[p] = convertValue(p);
+    } else {
+      table = null;
+    }
+  }
+
+  public final PixelFormat srcPF() { return srcPF; }
+  public final ColorModel cm() { return cm; }
+  public final int bytesPerPixel() { return bytesPerPixel; }
+
+  // compact() returns the converter for ZRLE's CPIXELs, which are three
+  // bytes for 32 bpp formats of up to 24 bits depth that fit in three
+  // bytes.
+
+  public final PixelConverter compact() {
+    if (compact == null) {
+      if (srcPF.bpp == 32 && srcPF.depth <= 24 && bytesPerPixel == 4 &&
+          (fitsInLS3Bytes(srcPF) || fitsInMS3Bytes(srcPF)))
+        compact = new PixelConverter(srcPF, 3, cm);
+      else
+        compact = this;
+    }
+    return compact;
+  }
+
+  // rgb() returns the converter for pixels sent as R, G and B bytes, as
+  // Tight does for 888 formats.
+
+  public final PixelConverter rgb() {
+    if (rgb == null)
+      rgb = new PixelConverter(rgbPF, 3, cm);
+    return rgb;
+  }
+
+  // convert() converts n pixels of src, starting at srcOff, into dst
+  // starting at dstOff.
+
+  public final void convert(byte[] src, int srcOff, int[] dst, int dstOff,
+                            int n) {
+    int dstEnd = dstOff + n;
+    switch (bytesPerPixel) {
+    case 1:
+      while (dstOff < dstEnd)
+        dst[dstOff++] = table[src[srcOff++] & 0xff];
+      return;
+    case 2:
+      if (bigEndian) {
+        for (; dstOff < dstEnd; srcOff += 2)
+          dst[dstOff++] = table[(src[srcOff] & 0xff) << 8 |
+                                (src[srcOff+1] & 0xff)];
+      } else {
+        for (; dstOff < dstEnd; srcOff += 2)
+          dst[dstOff++] = table[(src[srcOff+1] & 0xff) << 8 |
+                                (src[srcOff] & 0xff)];
+      }
+      return;
+    case 3:
+      if (bigEndian) {
+        for (int i = dstOff; i < dstEnd; srcOff += 3)
+          dst[i++] = ((src[srcOff] & 0xff) << 16 |
+                      (src[srcOff+1] & 0xff) << 8 |
+                      (src[srcOff+2] & 0xff)) << valueShift;
+      } else {
+        for (int i = dstOff; i < dstEnd; srcOff += 3)
+          dst[i++] = ((src[srcOff+2] & 0xff) << 16 |
+                      (src[srcOff+1] & 0xff) << 8 |
+                      (src[srcOff] & 0xff)) << valueShift;
+      }
+      break;
+    case 4:
+      if (kernel == directKernel) {
+        ByteBuffer.wrap(src, srcOff, n * 4)
+          .order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN)
+          .asIntBuffer().get(dst, dstOff, n);
+        return;
+      }
+      if (bigEndian) {
+        for (int i = dstOff; i < dstEnd; srcOff += 4)
+          dst[i++] = (src[srcOff] & 0xff) << 24 |
+                     (src[srcOff+1] & 0xff) << 16 |
+                     (src[srcOff+2] & 0xff) << 8 |
+                     (src[srcOff+3] & 0xff);
+      } else {
+        for (int i = dstOff; i < dstEnd; srcOff += 4)
+          dst[i++] = (src[srcOff+3] & 0xff) << 24 |
+                     (src[srcOff+2] & 0xff) << 16 |
+                     (src[srcOff+1] & 0xff) << 8 |
+                     (src[srcOff] & 0xff);
+      }
+      break;
+    default:
+      throw new Exception("PixelConverter: unsupported pixel size "+
+                          bytesPerPixel);
+    }
+    convertValues(dst, dstOff, n);
+  }
+
+  // convertPixel() converts the single pixel at src[srcOff].
+
+  public final int convertPixel(byte[] src, int srcOff) {
+    switch (bytesPerPixel) {
+    case 1:
+      return table[src[srcOff] & 0xff];
+    case 2:
+      if (bigEndian)
+        return table[(src[srcOff] & 0xff) << 8 | (src[srcOff+1] & 0xff)];
+      return table[(src[srcOff+1] & 0xff) << 8 | (src[srcOff] & 0xff)];
+    case 3:
+      if (bigEndian)
+        return convertValue(((src[srcOff] & 0xff) << 16 |
+                             (src[srcOff+1] & 0xff) << 8 |
+                             (src[srcOff+2] & 0xff)) << valueShift);
+      return convertValue(((src[srcOff+2] & 0xff) << 16 |
+                           (src[srcOff+1] & 0xff) << 8 |
+                           (src[srcOff] & 0xff)) << valueShift);
+    case 4:
+      if (bigEndian)
+        return convertValue((src[srcOff] & 0xff) << 24 |
+                            (src[srcOff+1] & 0xff) << 16 |
+                            (src[srcOff+2] & 0xff) << 8 |
+                            (src[srcOff+3] & 0xff));
+      return convertValue((src[srcOff+3] & 0xff) << 24 |
+                          (src[srcOff+2] & 0xff) << 16 |
+                          (src[srcOff+1] & 0xff) << 8 |
+                          (src[srcOff] & 0xff));
+    default:
+      throw new Exception("PixelConverter: unsupported pixel size "+
+                          bytesPerPixel);
+    }
+  }
+
+  // convertValue() converts a pixel value of the server's format, as
+  // opposed to its bytes.
+
+  public final int convertValue(int p) {
+    switch (kernel) {
+    case shiftKernel:
+      return alpha | ((p >>> rs) & 0xff) << drs | ((p >>> gs) & 0xff) << dgs |
+             ((p >>> bs) & 0xff) << dbs;
+    case componentKernel:
+      return alpha | redTable[(p >>> rs) & rMax] |
+             greenTable[(p >>> gs) & gMax] | blueTable[(p >>> bs) & bMax];
+    default:
+      return p;
+    }
+  }
+
+  // convertValues() converts n pixel values in place.
+
+  public final void convertValues(int[] buf, int off, int n) {
+    int end = off + n;
+    switch (kernel) {
+    case shiftKernel:
+      for (int i = off; i < end; i++) {
+        int p = buf[i];
+        buf[i] = alpha | ((p >>> rs) & 0xff) << drs |
+                 ((p >>> gs) & 0xff) << dgs | ((p >>> bs) & 0xff) << dbs;
+      }
+      break;
+    case componentKernel:
+      for (int i = off; i < end; i++) {
+        int p = buf[i];
+        buf[i] = alpha | redTable[(p >>> rs) & rMax] |
+                 greenTable[(p >>> gs) & gMax] | blueTable[(p >>> bs) & bMax];
+      }
+      break;
+    }
+  }
+
+  // readPixel() and readPixels() convert pixels straight out of an
+  // InStream's buffer.
+
+  public final int readPixel(InStream is) {
+    is.check(bytesPerPixel);
+    int ptr = is.getptr();
+    int p = convertPixel(is.getbuf(), ptr);
+    is.setptr(ptr + bytesPerPixel);
+    return p;
+  }
+
+  public final void readPixels(InStream is, int[] dst, int dstOff, int n) {
+    int dstEnd = dstOff + n;
+    while (dstOff < dstEnd) {
+      int count = is.check(bytesPerPixel, dstEnd - dstOff);
+      int ptr = is.getptr();
+      convert(is.getbuf(), ptr, dst, dstOff, count);
+      is.setptr(ptr + count * bytesPerPixel);
+      dstOff += count;
+    }
+  }
+
+  // componentTable() maps each value of a component with the given maximum
+  // to the nearest value under mask.
+
+  private static int[] componentTable(int max, int mask) {
+    int shift = Integer.numberOfTrailingZeros(mask);
+    int dstMax = mask >>> shift;
+    int[] t = new int[max + 1];
+    for (int v = 1; v <= max; v++)
+      t[v] = (int)(((long)v * dstMax + max / 2) / max) << shift;
+    return t;
+  }
+
+  private static boolean fitsInLS3Bytes(PixelFormat pf) {
+    return ((long)pf.redMax << pf.redShift) < (1 << 24) &&
+           ((long)pf.greenMax << pf.greenShift) < (1 << 24) &&
+           ((long)pf.blueMax << pf.blueShift) < (1 << 24);
+  }
+
+  private static boolean fitsInMS3Bytes(PixelFormat pf) {
+    return pf.redShift > 7 && pf.greenShift > 7 && pf.blueShift > 7;
+  }
+
+  private final PixelFormat srcPF;
+  private final ColorModel cm;
+  private final int bytesPerPixel;
+  private final boolean bigEndian;
+  private final int valueShift;
+
+  private final int kernel;
+  private final int[] table;
+  private final int rs, gs, bs, rMax, gMax, bMax;
+  private final int drs, dgs, dbs, alpha;
+  private final int[] redTable, greenTable, blueTable;
+
+  private PixelConverter compact, rgb;
+}
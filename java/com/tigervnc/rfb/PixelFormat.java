@@ -139,45 +139,6 @@ public class PixelFormat {
     return 0;
   }
 
-  public void bufferFromRGB(int[] dst, int dstPtr, byte[] src,
-                            int srcPtr, int pixels) {
-    if (is888()) {
-      // Optimised common case
-      int r, g, b;
-
-      for (int i=srcPtr; i < pixels; i++) {
-        if (bigEndian) {
-          r = (src[3*i+0] & 0xff) << (24 - redShift);
-          g = (src[3*i+1] & 0xff) << (24 - greenShift);
-          b = (src[3*i+2] & 0xff) << (24 - blueShift);
-          dst[dstPtr+i] = r | g | b | 0xff;
-        } else {
-          r = (src[3*i+0] & 0xff) << redShift;
-          g = (src[3*i+1] & 0xff) << greenShift;
-          b = (src[3*i+2] & 0xff) << blueShift;
-          dst[dstPtr+i] = (0xff << 24) | r | g | b;
-        }
-      }
-    } else {
-      // Generic code
-      int p, r, g, b;
-      int[] rgb = new int[4];
-
-      int i = srcPtr; int j = dstPtr;
-      while (i < pixels) {
-        r = src[i++] & 0xff;
-        g = src[i++] & 0xff;
-        b = src[i++] & 0xff;
-
-        //p = pixelFromRGB(r, g, b, cm);
-        p = ColorModel.getRGBdefault().getDataElement(new int[] {0xff, r, g, b}, 0);
-
-        bufferFromPixel(dst, j, p);
-        j += bpp/8;
-      }
-    }
-  }
-
   public void rgbFromBuffer(byte[] dst, int dstPtr, byte[] src, int srcPtr, int pixels, ColorModel cm)
   {
     int p;
@@ -26,14 +26,13 @@ public class RREDecoder extends Decoder {
 
   public void readRect(Rect r, CMsgHandler handler) {
     InStream is = reader.getInStream();
-    int bytesPerPixel = handler.cp.pf().bpp / 8;
-    boolean bigEndian = handler.cp.pf().bigEndian;
+    PixelConverter pc = handler.cp.converter();
     int nSubrects = is.readU32();
-    int bg = is.readPixel(bytesPerPixel, bigEndian);
+    int bg = pc.readPixel(is);
     handler.fillRect(r, bg);
 
     for (int i = 0; i < nSubrects; i++) {
-      int pix = is.readPixel(bytesPerPixel, bigEndian);
+      int pix = pc.readPixel(is);
       int x = is.readU16();
       int y = is.readU16();
       int w = is.readU16();
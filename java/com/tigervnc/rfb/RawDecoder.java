@@ -16,27 +16,41 @@
  * USA.
  */
 
+//
+// Raw rectangles are decoded a batch of rows at a time, into the reader's
+// image buffer, and each batch is handed on before the next is read.  The
+// memory used stays the same however large the rectangle, and the
+// framebuffer is updated while the rest of the data is still arriving.
+//
+
 package com.tigervnc.rfb;
 
+import com.tigervnc.rdr.*;
+
 public class RawDecoder extends Decoder {
 
+  // The number of pixels decoded at a time, unless a single row is longer.
+  static final int batchPixels = 16384;
+
   public RawDecoder(CMsgReader reader_) { reader = reader_; }
 
   public void readRect(Rect r, CMsgHandler handler) {
-    int x = r.tl.x;
-    int y = r.tl.y;
+    if (r.is_empty())
+      return;
+
+    InStream is = reader.getInStream();
+    PixelConverter pc = handler.cp.converter();
     int w = r.width();
-    int h = r.height();
-    int[] imageBuf = new int[w*h];
-    int nPixels = imageBuf.length;
-    int bytesPerRow = w * (reader.bpp() / 8);
-    while (h > 0) {
-      int nRows = nPixels / w;
-      if (nRows > h) nRows = h;
-      reader.getInStream().readPixels(imageBuf, nPixels, (reader.bpp() / 8), handler.cp.pf().bigEndian);
-      handler.imageRect(new Rect(x, y, x+w, y+nRows), imageBuf);
-      h -= nRows;
-      y += nRows;
+    int maxRows = Math.max(1, batchPixels / w);
+    int[] imageBuf = reader.getImageBuf(maxRows * w);
+
+    Rect batch = new Rect();
+    batch.tl.x = r.tl.x;
+    batch.br.x = r.br.x;
+    for (batch.tl.y = r.tl.y; batch.tl.y < r.br.y; batch.tl.y = batch.br.y) {
+      batch.br.y = Math.min(r.br.y, batch.tl.y + maxRows);
+      pc.readPixels(is, imageBuf, 0, batch.area());
+      handler.imageRect(batch, imageBuf);
     }
   }
 
@@ -0,0 +1,74 @@
+/*
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// RecordingInStream passes through whatever it reads from another InStream
+// (an FdInStream or TLSInStream) and hands each chunk to a SessionRecorder
+// as it goes.
+//
+
+package com.tigervnc.rfb;
+
+import com.tigervnc.rdr.*;
+
+public class RecordingInStream extends InStream {
+
+  static final int defaultBufSize = 16384;
+
+  public RecordingInStream(InStream in_, SessionRecorder recorder_) {
+    in = in_;
+    recorder = recorder_;
+    bufSize = defaultBufSize;
+    b = new byte[bufSize];
+    ptr = end = offset = 0;
+  }
+
+  public int pos() { return offset + ptr; }
+
+  public SessionRecorder getRecorder() { return recorder; }
+
+  protected int overrun(int itemSize, int nItems, boolean wait) {
+    if (itemSize > bufSize)
+      throw new Exception("RecordingInStream overrun: max itemSize exceeded");
+
+    if (end - ptr != 0)
+      System.arraycopy(b, ptr, b, 0, end - ptr);
+
+    offset += ptr;
+    end -= ptr;
+    ptr = 0;
+
+    while (end < itemSize) {
+      int n = in.check(1, bufSize - end, wait);
+      if (n == 0) return 0;
+      System.arraycopy(in.getbuf(), in.getptr(), b, end, n);
+      in.setptr(in.getptr() + n);
+      recorder.writeData(b, end, n);
+      end += n;
+    }
+
+    if (itemSize * nItems > end - ptr)
+      nItems = (end - ptr) / itemSize;
+
+    return nItems;
+  }
+
+  private InStream in;
+  private SessionRecorder recorder;
+  private int bufSize;
+  private int offset;
+}
@@ -0,0 +1,312 @@
+/*
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+package com.tigervnc.rfb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Region {
+
+  // Region
+  //
+  // A set of pixels, held as a list of disjoint Rects.  It follows the
+  // interface of the C++ rfb::Region, but rather than X11 style bands it
+  // keeps a plain list, which suits the small regions a viewer collects.
+  // Rects which line up exactly with a neighbour are merged as they are
+  // added.
+  //
+  // A Region can be given a maximum number of Rects.  When a union would
+  // exceed it, the pair of Rects whose bounding box wastes the fewest pixels
+  // is replaced by that box, so the region may grow to cover pixels which
+  // were never added, but never loses any.
+
+  public Region() {
+    rects = new ArrayList<Rect>();
+  }
+
+  public Region(Rect r) {
+    this();
+    reset(r);
+  }
+
+  public Region(Region r) {
+    this();
+    copyFrom(r);
+  }
+
+  // setMaxRects() bounds the number of Rects.  0, the default, means no
+  // bound.
+
+  public final void setMaxRects(int max) {
+    maxRects = max;
+    enforceMaxRects();
+  }
+
+  // the following methods alter the region in place:
+
+  public final void clear() {
+    rects.clear();
+  }
+
+  public final void reset(Rect r) {
+    rects.clear();
+    if (!r.is_empty())
+      rects.add(copy(r));
+  }
+
+  public final void translate(Point delta) {
+    for (int i = 0; i < rects.size(); i++)
+      rects.set(i, rects.get(i).translate(delta));
+  }
+
+  public final void copyFrom(Region r) {
+    rects.clear();
+    for (Rect rect : r.rects)
+      rects.add(copy(rect));
+    enforceMaxRects();
+  }
+
+  public final void assign_intersect(Rect r) {
+    ArrayList<Rect> result = new ArrayList<Rect>(rects.size());
+    for (Rect rect : rects) {
+      Rect i = rect.intersect(r);
+      if (!i.is_empty())
+        result.add(i);
+    }
+    rects = result;
+  }
+
+  public final void assign_intersect(Region r) {
+    ArrayList<Rect> result = new ArrayList<Rect>();
+    for (Rect a : rects) {
+      for (Rect b : r.rects) {
+        Rect i = a.intersect(b);
+        if (!i.is_empty())
+          result.add(i);
+      }
+    }
+    rects = result;
+    enforceMaxRects();
+  }
+
+  public final void assign_union(Rect r) {
+    if (r.is_empty())
+      return;
+
+    ArrayList<Rect> pieces = new ArrayList<Rect>(4);
+    pieces.add(copy(r));
+    for (int i = 0; i < rects.size() && !pieces.isEmpty(); ) {
+      Rect rect = rects.get(i);
+      if (rect.enclosed_by(r)) {
+        rects.remove(i);
+        continue;
+      }
+      if (rect.overlaps(r))
+        pieces = subtract(pieces, rect);
+      i++;
+    }
+
+    for (Rect piece : pieces)
+      addDisjoint(piece);
+    enforceMaxRects();
+  }
+
+  public final void assign_union(Region r) {
+    for (Rect rect : r.rects)
+      assign_union(rect);
+  }
+
+  public final void assign_subtract(Rect r) {
+    if (r.is_empty())
+      return;
+    rects = subtract(rects, r);
+  }
+
+  public final void assign_subtract(Region r) {
+    for (Rect rect : r.rects)
+      assign_subtract(rect);
+  }
+
+  // the following three operations return a new region:
+
+  public final Region intersect(Region r) {
+    Region result = new Region(this);
+    result.assign_intersect(r);
+    return result;
+  }
+
+  public final Region union_(Region r) {
+    Region result = new Region(this);
+    result.assign_union(r);
+    return result;
+  }
+
+  public final Region subtract(Region r) {
+    Region result = new Region(this);
+    result.assign_subtract(r);
+    return result;
+  }
+
+  public final boolean equals(Region b) {
+    if (!get_bounding_rect().equals(b.get_bounding_rect()))
+      return false;
+    Region r = subtract(b);
+    if (!r.is_empty())
+      return false;
+    r = b.subtract(this);
+    return r.is_empty();
+  }
+
+  public final int numRects() { return rects.size(); }
+  public final boolean is_empty() { return rects.isEmpty(); }
+
+  // get_rects() appends the Rects of the region to the given list, ordered
+  // by the top edge and then the left edge, as requested.  It returns false
+  // if the region is empty.
+
+  public final boolean get_rects(List<Rect> result, final boolean left2right,
+                                 final boolean topdown) {
+    ArrayList<Rect> sorted = new ArrayList<Rect>(rects.size());
+    for (Rect rect : rects)
+      sorted.add(copy(rect));
+    java.util.Collections.sort(sorted, new java.util.Comparator<Rect>() {
+      public int compare(Rect a, Rect b) {
+        if (a.tl.y != b.tl.y)
+          return topdown ? a.tl.y - b.tl.y : b.tl.y - a.tl.y;
+        return left2right ? a.tl.x - b.tl.x : b.tl.x - a.tl.x;
+      }
+    });
+    result.addAll(sorted);
+    return !sorted.isEmpty();
+  }
+
+  public final boolean get_rects(List<Rect> result) {
+    return get_rects(result, true, true);
+  }
+
+  public final Rect get_bounding_rect() {
+    Rect r = new Rect();
+    for (Rect rect : rects)
+      r = r.union_boundary(rect);
+    return copy(r);
+  }
+
+  public final void debug_print(String prefix) {
+    Rect b = get_bounding_rect();
+    StringBuffer s = new StringBuffer(prefix+" num rects "+rects.size()+
+                                      " extents "+b.tl.x+","+b.tl.y+" "+
+                                      b.br.x+","+b.br.y);
+    for (Rect rect : rects)
+      s.append("\n    rect "+rect.tl.x+","+rect.tl.y+" "+
+               rect.width()+"x"+rect.height());
+    vlog.debug(s.toString());
+  }
+
+  // subtract() returns what is left of the disjoint Rects in list once r is
+  // taken away from each of them.  Each can leave up to four pieces.
+
+  private static ArrayList<Rect> subtract(List<Rect> list, Rect r) {
+    ArrayList<Rect> result = new ArrayList<Rect>(list.size() + 3);
+    for (Rect a : list) {
+      if (!a.overlaps(r)) {
+        result.add(a);
+        continue;
+      }
+      if (r.tl.y > a.tl.y)
+        result.add(new Rect(a.tl.x, a.tl.y, a.br.x, r.tl.y));
+      int y1 = Math.max(a.tl.y, r.tl.y);
+      int y2 = Math.min(a.br.y, r.br.y);
+      if (r.tl.x > a.tl.x)
+        result.add(new Rect(a.tl.x, y1, r.tl.x, y2));
+      if (r.br.x < a.br.x)
+        result.add(new Rect(r.br.x, y1, a.br.x, y2));
+      if (r.br.y < a.br.y)
+        result.add(new Rect(a.tl.x, r.br.y, a.br.x, a.br.y));
+    }
+    return result;
+  }
+
+  // addDisjoint() adds a Rect which overlaps none in the region, merging it
+  // with any Rect it exactly extends.
+
+  private void addDisjoint(Rect r) {
+    boolean merged;
+    do {
+      merged = false;
+      for (int i = 0; i < rects.size(); i++) {
+        Rect e = rects.get(i);
+        if ((e.tl.x == r.tl.x && e.br.x == r.br.x &&
+             (e.br.y == r.tl.y || e.tl.y == r.br.y)) ||
+            (e.tl.y == r.tl.y && e.br.y == r.br.y &&
+             (e.br.x == r.tl.x || e.tl.x == r.br.x))) {
+          rects.remove(i);
+          r = e.union_boundary(r);
+          merged = true;
+          break;
+        }
+      }
+    } while (merged);
+    rects.add(r);
+  }
+
+  private void enforceMaxRects() {
+    while (maxRects > 0 && rects.size() > maxRects) {
+      int bestA = 0, bestB = 1;
+      long bestWaste = Long.MAX_VALUE;
+      for (int a = 0; a < rects.size(); a++) {
+        Rect ra = rects.get(a);
+        for (int b = a + 1; b < rects.size(); b++) {
+          Rect rb = rects.get(b);
+          long waste = (long)ra.union_boundary(rb).area() - ra.area() - rb.area();
+          if (waste < bestWaste) {
+            bestWaste = waste;
+            bestA = a;
+            bestB = b;
+          }
+        }
+      }
+
+      // Replace the pair by its bounding box, swallowing whatever else that
+      // box touches so that the Rects stay disjoint.
+      Rect box = rects.get(bestA).union_boundary(rects.get(bestB));
+      rects.remove(bestB);
+      rects.remove(bestA);
+      boolean grew;
+      do {
+        grew = false;
+        for (int i = 0; i < rects.size(); i++) {
+          if (rects.get(i).overlaps(box)) {
+            box = box.union_boundary(rects.remove(i));
+            grew = true;
+            break;
+          }
+        }
+      } while (grew);
+      addDisjoint(box);
+    }
+  }
+
+  private static Rect copy(Rect r) {
+    return new Rect(r.tl, r.br);
+  }
+
+  private ArrayList<Rect> rects;
+  private int maxRects;
+
+  static LogWriter vlog = new LogWriter("Region");
+}
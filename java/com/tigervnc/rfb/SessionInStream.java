@@ -0,0 +1,196 @@
+/*
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// SessionInStream plays back a file written by SessionRecorder.  It reads
+// the header on construction and then serves the recorded server data, so
+// that a CMsgReaderV3 can be run over it.  Each data record is loaded whole,
+// along with any pixel format records that follow it.  The caller applies
+// those with pixelFormatChange() between messages.
+//
+// When paced, a data record is not handed out before the time at which it
+// was originally received, relative to the start of the playback.
+//
+
+package com.tigervnc.rfb;
+
+import java.io.*;
+import java.util.LinkedList;
+
+import com.tigervnc.rdr.*;
+import com.tigervnc.rdr.Exception;
+
+public class SessionInStream extends InStream {
+
+  static final int defaultBufSize = 16384;
+
+  public SessionInStream(String filename, boolean paced_) {
+    paced = paced_;
+    try {
+      file = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(filename)));
+      byte[] m = new byte[SessionRecorder.magic.length];
+      file.readFully(m);
+      if (!java.util.Arrays.equals(m, SessionRecorder.magic))
+        throw new Exception(filename+" is not a session recording");
+      width = file.readUnsignedShort();
+      height = file.readUnsignedShort();
+      pf = readPixelFormat();
+      byte[] utf8str = new byte[file.readInt()];
+      file.readFully(utf8str);
+      name = new String(utf8str, "UTF8");
+    } catch (IOException e) {
+      throw new Exception("Unable to read "+filename+": "+e.getMessage());
+    }
+    b = new byte[defaultBufSize];
+    ptr = end = offset = 0;
+  }
+
+  public final int width() { return width; }
+  public final int height() { return height; }
+  public final PixelFormat pf() { return pf; }
+  public final String name() { return name; }
+
+  public int pos() { return offset + ptr; }
+
+  // dataTime() returns the time, in milliseconds since the recording
+  // started, at which the most recently loaded data was received.
+
+  public final int dataTime() { return dataTime; }
+
+  // playbackTime() returns the time since the playback started, on the same
+  // scale as dataTime().  It is only meaningful when paced.
+
+  public final int playbackTime() {
+    return (int)(System.currentTimeMillis() - startTime);
+  }
+
+  // pixelFormatChange() returns the next pixel format change if it is due
+  // at the current position, or null.
+
+  public PixelFormat pixelFormatChange() {
+    if (pfChanges.isEmpty() || pfOffsets.getFirst().intValue() > pos())
+      return null;
+    pfOffsets.removeFirst();
+    return pfChanges.removeFirst();
+  }
+
+  public void close() {
+    try {
+      file.close();
+    } catch (IOException e) { }
+  }
+
+  protected int overrun(int itemSize, int nItems, boolean wait) {
+    if (end - ptr != 0)
+      System.arraycopy(b, ptr, b, 0, end - ptr);
+
+    offset += ptr;
+    end -= ptr;
+    ptr = 0;
+
+    try {
+      while (end < itemSize) {
+        if (!haveNext && !readNextData())
+          throw new EndOfStream();
+        if (end + nextLen > b.length) {
+          byte[] newb = new byte[end + nextLen];
+          System.arraycopy(b, 0, newb, 0, end);
+          b = newb;
+        }
+        if (paced)
+          waitUntil(nextTime);
+        file.readFully(b, end, nextLen);
+        end += nextLen;
+        dataTime = nextTime;
+
+        // Pick up the pixel format changes that belong to this data.
+        haveNext = readNextData();
+      }
+    } catch (IOException e) {
+      throw new Exception("Error reading recording: "+e.getMessage());
+    }
+
+    if (itemSize * nItems > end - ptr)
+      nItems = (end - ptr) / itemSize;
+
+    return nItems;
+  }
+
+  // readNextData() reads up to the start of the next data record's
+  // payload, queueing any pixel format records on the way.  It returns
+  // false at the end of the file.
+
+  private boolean readNextData() throws IOException {
+    while (true) {
+      int type;
+      try {
+        type = file.readUnsignedByte();
+      } catch (EOFException e) {
+        return false;
+      }
+      int time = file.readInt();
+      switch (type) {
+      case SessionRecorder.recordData:
+        nextTime = time;
+        nextLen = file.readInt();
+        return true;
+      case SessionRecorder.recordPixelFormat:
+        pfOffsets.add(Integer.valueOf(file.readInt()));
+        pfChanges.add(readPixelFormat());
+        break;
+      default:
+        throw new Exception("Unknown record type "+type+" in recording");
+      }
+    }
+  }
+
+  private PixelFormat readPixelFormat() throws IOException {
+    byte[] bytes = new byte[16];
+    file.readFully(bytes);
+    PixelFormat p = new PixelFormat();
+    p.read(new MemInStream(bytes, 0, bytes.length));
+    return p;
+  }
+
+  private void waitUntil(int time) {
+    long now = System.currentTimeMillis();
+    if (startTime == 0)
+      startTime = now - time;
+    long delay = startTime + time - now;
+    if (delay <= 0)
+      return;
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException e) {
+      throw new Exception(e.getMessage());
+    }
+  }
+
+  private DataInputStream file;
+  private boolean paced;
+  private long startTime;
+  private int width, height;
+  private PixelFormat pf;
+  private String name;
+  private int offset;
+  private int dataTime;
+  private boolean haveNext;
+  private int nextTime, nextLen;
+  private LinkedList<Integer> pfOffsets = new LinkedList<Integer>();
+  private LinkedList<PixelFormat> pfChanges = new LinkedList<PixelFormat>();
+}
@@ -0,0 +1,152 @@
+/*
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// SessionRecorder writes the server-to-client half of an RFB session, from
+// just after ServerInit onwards, to a file which SessionInStream can play
+// back.  The file starts with:
+//
+//   8 bytes    magic, "TVNCREC1"
+//   U16, U16   framebuffer width and height
+//   16 bytes   pixel format the first update is decoded with
+//   U32 + n    desktop name
+//
+// followed by records, each a U8 type and a U32 time in milliseconds since
+// recording started:
+//
+//   recordData         U32 length, then the bytes as read from the network
+//   recordPixelFormat  U32 stream offset, then 16 bytes of pixel format
+//
+// A pixel format record takes effect once the given number of stream bytes
+// have been consumed.  It always follows the data record holding the byte
+// before that offset.
+//
+
+package com.tigervnc.rfb;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.tigervnc.rdr.*;
+
+public class SessionRecorder {
+
+  public static final byte[] magic = { 'T', 'V', 'N', 'C', 'R', 'E', 'C', '1' };
+
+  public static final int recordData = 0;
+  public static final int recordPixelFormat = 1;
+
+  static final int bufferSize = 65536;
+
+  public SessionRecorder(String filename, ConnParams cp) {
+    try {
+      file = new BufferedOutputStream(new FileOutputStream(filename),
+                                      bufferSize);
+    } catch (IOException e) {
+      throw new Exception("Unable to create "+filename+": "+e.getMessage());
+    }
+    startTime = System.currentTimeMillis();
+    pf = new PixelFormat();
+    pf.read(new MemInStream(pfBytes(cp.pf()), 0, 16));
+
+    MemOutStream os = new MemOutStream();
+    os.writeBytes(magic, 0, magic.length);
+    os.writeU16(cp.width);
+    os.writeU16(cp.height);
+    pf.write(os);
+    os.writeString(cp.name());
+    write(os.data(), 0, os.length());
+  }
+
+  // writeData() records bytes just read from the server.
+
+  public void writeData(byte[] buf, int bufPtr, int len) {
+    MemOutStream os = header;
+    os.clear();
+    os.writeU8(recordData);
+    os.writeU32(elapsed());
+    os.writeU32(len);
+    write(os.data(), 0, os.length());
+    write(buf, bufPtr, len);
+  }
+
+  // checkPixelFormat() records a pixel format change if pf differs from the
+  // one last recorded.  offset is the number of recorded bytes consumed so
+  // far; it must be called between messages.
+
+  public void checkPixelFormat(int offset, PixelFormat newPF) {
+    if (newPF.equal(pf))
+      return;
+    byte[] bytes = pfBytes(newPF);
+    pf = new PixelFormat();
+    pf.read(new MemInStream(bytes, 0, 16));
+
+    MemOutStream os = header;
+    os.clear();
+    os.writeU8(recordPixelFormat);
+    os.writeU32(elapsed());
+    os.writeU32(offset);
+    os.writeBytes(bytes, 0, bytes.length);
+    write(os.data(), 0, os.length());
+  }
+
+  // close() writes out whatever is still buffered and ends the recording.
+
+  public void close() {
+    if (file == null)
+      return;
+    try {
+      file.close();
+    } catch (IOException e) {
+      vlog.error("Unable to finish recording: "+e.getMessage());
+    }
+    file = null;
+  }
+
+  // A failure to write only ends the recording, not the session.
+
+  private void write(byte[] buf, int bufPtr, int len) {
+    if (file == null)
+      return;
+    try {
+      file.write(buf, bufPtr, len);
+    } catch (IOException e) {
+      vlog.error("Recording stopped: "+e.getMessage());
+      close();
+    }
+  }
+
+  private int elapsed() {
+    return (int)(System.currentTimeMillis() - startTime);
+  }
+
+  private static byte[] pfBytes(PixelFormat pf) {
+    MemOutStream os = new MemOutStream(16);
+    pf.write(os);
+    byte[] bytes = new byte[16];
+    System.arraycopy(os.data(), 0, bytes, 0, 16);
+    return bytes;
+  }
+
+  private BufferedOutputStream file;
+  private long startTime;
+  private PixelFormat pf;
+  private MemOutStream header = new MemOutStream(32);
+
+  static LogWriter vlog = new LogWriter("SessionRecorder");
+}
@@ -22,16 +22,17 @@
 package com.tigervnc.rfb;
 
 import com.tigervnc.rdr.InStream;
+import com.tigervnc.rdr.MemInStream;
 import com.tigervnc.rdr.ZlibInStream;
+import com.tigervnc.rdr.ZlibInflater;
 import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.*;
 import java.io.InputStream;
 import java.awt.image.*;
-import java.awt.*;
 
 public class TightDecoder extends Decoder {
 
-  final static int TIGHT_MAX_WIDTH = 2048;
-
   // Compression control
   final static int rfbTightExplicitFilter = 0x04;
   final static int rfbTightFill = 0x08;
@@ -44,13 +45,19 @@ public class TightDecoder extends Decoder {
   final static int rfbTightFilterGradient = 0x02;
   final static int rfbTightMinToCompress = 12;
 
-  final static Toolkit tk = Toolkit.getDefaultToolkit();
+  // Maximum number of rectangles that may be decoding on the stream workers
+  // before the RFB thread waits for the oldest one to be committed.
+  final static int MAX_PENDING_RECTS = 16;
+
+  // Upper bound on the number of threads decoding JPEG rectangles.
+  final static int MAX_JPEG_THREADS = 4;
 
   public TightDecoder(CMsgReader reader_) {
     reader = reader_;
     zis = new ZlibInStream[4];
     for (int i = 0; i < 4; i++)
-      zis[i] = new ZlibInStream();
+      zis[i] = new ZlibInStream(
+        ZlibInflater.create(reader.handler.cp.zlibInflater));
   }
 
   public void readRect(Rect r, CMsgHandler handler)
@@ -59,6 +66,7 @@ public class TightDecoder extends Decoder {
     boolean cutZeros = false;
     clientpf = handler.getPreferredPF();
     serverpf = handler.cp.pf();
+    this.handler = handler;
     int bpp = serverpf.bpp;
     cutZeros = false;
     if (bpp == 32) {
@@ -67,6 +75,9 @@ public class TightDecoder extends Decoder {
       }
     }
 
+    PixelConverter pc = handler.cp.converter();
+    boolean parallel = handler.cp.parallelTightDecoding;
+
     int comp_ctl = is.readU8();
 
     boolean bigEndian = handler.cp.pf().bigEndian;
@@ -74,22 +85,21 @@ public class TightDecoder extends Decoder {
     // Flush zlib streams if we are told by the server to do so.
     for (int i = 0; i < 4; i++) {
       if ((comp_ctl & 1) != 0) {
-        zis[i].reset();
+        if (parallel)
+          resetStream(i);
+        else
+          zis[i].reset();
       }
       comp_ctl >>= 1;
     }
 
     // "Fill" compression type.
     if (comp_ctl == rfbTightFill) {
-      int[] pix = new int[1];
-      if (cutZeros) {
-        byte[] bytebuf = new byte[3];
-        is.readBytes(bytebuf, 0, 3);
-        serverpf.bufferFromRGB(pix, 0, bytebuf, 0, 1);
-      } else {
-        pix[0] = is.readPixel(serverpf.bpp/8, serverpf.bigEndian);
-      }
-      handler.fillRect(r, pix[0]);
+      int pix = (cutZeros ? pc.rgb() : pc).readPixel(is);
+      if (pending.isEmpty())
+        handler.fillRect(r, pix);
+      else
+        queueRect(new PendingRect(r, pix));
       return;
     }
 
@@ -115,14 +125,7 @@ public class TightDecoder extends Decoder {
       switch (filterId) {
       case rfbTightFilterPalette:
         palSize = is.readU8() + 1;
-        byte[] tightPalette;
-        if (cutZeros) {
-          tightPalette = new byte[256 * 3];
-          is.readBytes(tightPalette, 0, palSize * 3);
-          serverpf.bufferFromRGB(palette, 0, tightPalette, 0, palSize);
-        } else {
-          is.readPixels(palette, palSize, serverpf.bpp/8, serverpf.bigEndian);
-        }
+        (cutZeros ? pc.rgb() : pc).readPixels(is, palette, 0, palSize);
         break;
       case rfbTightFilterGradient:
         useGradient = true;
@@ -151,6 +154,16 @@ public class TightDecoder extends Decoder {
     } else {
       int length = is.readCompactLength();
       streamId = comp_ctl & 0x03;
+      if (parallel) {
+        // Read the compressed payload now and leave inflating, filtering
+        // and pixel conversion to the worker that owns this zlib stream.
+        byte[] zbuf = new byte[length];
+        is.readBytes(zbuf, 0, length);
+        queueRect(new PendingRect(r, getStream(streamId).submit(
+          new BasicRect(r, zbuf, streamId, dataSize, pc, palSize,
+                        palette, useGradient, cutZeros))));
+        return;
+      }
       zis[streamId].setUnderlying(is, length);
       input = (ZlibInStream)zis[streamId];
     }
@@ -159,41 +172,52 @@ public class TightDecoder extends Decoder {
     byte[] netbuf = new byte[dataSize];
     input.readBytes(netbuf, 0, dataSize);
 
-    int stride = r.width();
+    if (streamId == -1 && !pending.isEmpty()) {
+      // Uncompressed data is tiny, so decode it here but keep it queued
+      // behind the rectangles that are still in flight.
+      int[] buf = new int[r.area()];
+      decodeBasic(netbuf, buf, r, pc, palSize, palette, useGradient,
+                  cutZeros);
+      queueRect(new PendingRect(r, buf));
+      return;
+    }
+
     int[] buf = reader.getImageBuf(r.area());
+    decodeBasic(netbuf, buf, r, pc, palSize, palette, useGradient,
+                cutZeros);
+
+    handler.imageRect(r, buf);
+
+    if (streamId != -1) {
+      zis[streamId].reset();
+    }
+  }
+
+  // flush() commits every queued rectangle to the framebuffer, waiting for
+  // the stream workers where necessary.
+
+  public void flush()
+  {
+    commitPending(true);
+  }
+
+  final private void decodeBasic(byte[] netbuf, int[] buf, Rect r,
+                                 PixelConverter pc, int palSize,
+                                 int[] palette, boolean useGradient,
+                                 boolean cutZeros)
+  {
+    int stride = r.width();
 
     if (palSize == 0) {
       // Truecolor data.
       if (useGradient) {
-        if (bpp == 32 && cutZeros) {
-          FilterGradient24(netbuf, buf, stride, r);
-        } else {
-          FilterGradient(netbuf, buf, stride, r);
-        }
+        // The filter works on the server's pixel values, so these are only
+        // converted once the whole rectangle has been rebuilt.
+        FilterGradient(netbuf, buf, stride, r, pc.srcPF(), cutZeros);
+        pc.convertValues(buf, 0, r.area());
       } else {
         // Copy
-        int h = r.height();
-        int ptr = 0;
-        int srcPtr = 0;
-        int w = r.width();
-        if (cutZeros) {
-          serverpf.bufferFromRGB(buf, ptr, netbuf, srcPtr, w*h);
-        } else {
-          int pixelSize = (bpp >= 24) ? 3 : bpp/8;
-          while (h > 0) {
-            for (int i = 0; i < w; i++) {
-              if (bpp == 8) {
-                buf[ptr+i] = netbuf[srcPtr+i] & 0xff;
-              } else {
-                for (int j = pixelSize-1; j >= 0; j--)
-                  buf[ptr+i] |= ((netbuf[srcPtr+i+j] & 0xff) << j*8);
-              }
-            }
-            ptr += stride;
-            srcPtr += w * pixelSize;
-            h--;
-          }
-        }
+        (cutZeros ? pc.rgb() : pc).convert(netbuf, 0, buf, 0, r.area());
       }
     } else {
       // Indexed color
@@ -230,12 +254,186 @@ public class TightDecoder extends Decoder {
         }
       }
     }
+  }
 
-    handler.imageRect(r, buf);
+  // BasicRect inflates, filters and converts one "basic" rectangle on the
+  // worker thread of its zlib stream.  Each stream has a single worker, so
+  // the inflater sees its input in the same order as the server sent it.
 
-    if (streamId != -1) {
+  private final class BasicRect implements Callable<int[]> {
+
+    BasicRect(Rect r_, byte[] zbuf_, int streamId_, int dataSize_,
+              PixelConverter pc_, int palSize_, int[] palette_,
+              boolean useGradient_, boolean cutZeros_)
+    {
+      r = r_; zbuf = zbuf_; streamId = streamId_; dataSize = dataSize_;
+      pc = pc_; palSize = palSize_; palette = palette_;
+      useGradient = useGradient_; cutZeros = cutZeros_;
+    }
+
+    public int[] call()
+    {
+      zis[streamId].setUnderlying(new MemInStream(zbuf, 0, zbuf.length),
+                                  zbuf.length);
+      byte[] netbuf = new byte[dataSize];
+      zis[streamId].readBytes(netbuf, 0, dataSize);
       zis[streamId].reset();
+
+      int[] buf = new int[r.area()];
+      decodeBasic(netbuf, buf, r, pc, palSize, palette, useGradient,
+                  cutZeros);
+      return buf;
     }
+
+    private Rect r;
+    private byte[] zbuf;
+    private int streamId, dataSize, palSize;
+    private PixelConverter pc;
+    private int[] palette;
+    private boolean useGradient, cutZeros;
+  }
+
+  // A rectangle waiting to be committed to the framebuffer, either as a
+  // solid fill or as pixels that may still be in production.
+
+  private static final class PendingRect {
+
+    PendingRect(Rect r_, Future<?> pixels_) { r = r_; pixels = pixels_; }
+
+    PendingRect(Rect r_, Object buf_) { r = r_; buf = buf_; }
+
+    PendingRect(Rect r_, int fill_) { r = r_; fill = fill_; isFill = true; }
+
+    boolean isDone() { return (pixels == null) || pixels.isDone(); }
+
+    void commit(CMsgHandler handler)
+    {
+      if (isFill) {
+        handler.fillRect(r, fill);
+        return;
+      }
+      if (pixels != null) {
+        try {
+          buf = pixels.get();
+        } catch (InterruptedException e) {
+          throw new Exception("TightDecoder: interrupted");
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException)
+            throw (RuntimeException)cause;
+          throw new Exception("TightDecoder: "+cause.toString());
+        }
+      }
+      handler.imageRect(r, buf);
+    }
+
+    private Rect r;
+    private Future<?> pixels;
+    private Object buf;
+    private int fill;
+    private boolean isFill;
+  }
+
+  // JpegRect decodes one JPEG rectangle on the JPEG worker pool.  Each
+  // worker thread keeps its own decompressor.
+
+  private static final class JpegRect implements Callable<BufferedImage> {
+
+    JpegRect(Rect r_, byte[] netbuf_) { r = r_; netbuf = netbuf_; }
+
+    public BufferedImage call()
+    {
+      return jpegs.get().decompress(netbuf, netbuf.length, r);
+    }
+
+    private Rect r;
+    private byte[] netbuf;
+  }
+
+  private static final ThreadLocal<JpegDecompressor> jpegs =
+    new ThreadLocal<JpegDecompressor>() {
+      protected JpegDecompressor initialValue() {
+        return new JpegDecompressor();
+      }
+    };
+
+  private void queueRect(PendingRect p)
+  {
+    pending.addLast(p);
+    commitPending(false);
+    while (pending.size() > MAX_PENDING_RECTS)
+      pending.removeFirst().commit(handler);
+  }
+
+  // commitPending() hands finished rectangles to the handler in protocol
+  // order.  If wait is false it stops at the first unfinished rectangle.
+
+  private void commitPending(boolean wait)
+  {
+    while (!pending.isEmpty()) {
+      if (!wait && !pending.getFirst().isDone())
+        break;
+      pending.removeFirst().commit(handler);
+    }
+  }
+
+  private void resetStream(final int streamId)
+  {
+    getStream(streamId).execute(new Runnable() {
+      public void run() {
+        zis[streamId].reset();
+      }
+    });
+  }
+
+  // close() stops the worker threads.  Whatever they are still doing is
+  // abandoned, as the connection is finished with.
+
+  public void close()
+  {
+    for (int i = 0; i < streams.length; i++) {
+      if (streams[i] != null) {
+        streams[i].shutdownNow();
+        streams[i] = null;
+      }
+    }
+    if (jpegPool != null) {
+      jpegPool.shutdownNow();
+      jpegPool = null;
+    }
+    pending.clear();
+  }
+
+  private ExecutorService getStream(int streamId)
+  {
+    if (streams[streamId] == null)
+      streams[streamId] =
+        Executors.newSingleThreadExecutor(new WorkerFactory("stream"));
+    return streams[streamId];
+  }
+
+  private ExecutorService getJpegPool()
+  {
+    if (jpegPool == null) {
+      int nThreads = Math.min(MAX_JPEG_THREADS,
+                              Runtime.getRuntime().availableProcessors());
+      jpegPool = Executors.newFixedThreadPool(nThreads,
+                                              new WorkerFactory("JPEG"));
+    }
+    return jpegPool;
+  }
+
+  private static final class WorkerFactory implements ThreadFactory {
+
+    WorkerFactory(String name_) { name = name_; }
+
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "TightDecoder "+name);
+      t.setDaemon(true);
+      return t;
+    }
+
+    private String name;
   }
 
   final private void DECOMPRESS_JPEG_RECT(Rect r, InStream is, CMsgHandler handler)
@@ -249,106 +447,142 @@ public class TightDecoder extends Decoder {
     byte[] netbuf = new byte[compressedLen];
     is.readBytes(netbuf, 0, compressedLen);
 
-    // Create an Image object from the JPEG data.
-    Image jpeg = tk.createImage(netbuf);
-    jpeg.setAccelerationPriority(1);
-    handler.imageRect(r, jpeg);
-    jpeg.flush();
+    if (handler.cp.parallelTightDecoding) {
+      queueRect(new PendingRect(r, getJpegPool().submit(
+        new JpegRect(r, netbuf))));
+      return;
+    }
+
+    if (jpeg == null)
+      jpeg = new JpegDecompressor();
+    handler.imageRect(r, jpeg.decompress(netbuf, compressedLen, r));
   }
 
-  final private void FilterGradient24(byte[] netbuf, int[] buf, int stride,
-                                      Rect r)
+  // FilterGradient() undoes the gradient filter.  Each pixel of netbuf is
+  // the difference, per colour component, between the real pixel and a
+  // prediction made from its left, upper and upper-left neighbours.  Each
+  // row of differences is unpacked into the row of buf it will become and
+  // then rebuilt in place, with the row above in buf providing the upper
+  // neighbours, so no scratch rows are needed and the pixel format is only
+  // looked at once per row.
+
+  final private void FilterGradient(byte[] netbuf, int[] buf, int stride,
+                                    Rect r, PixelFormat pf, boolean cutZeros)
   {
+    int w = r.width();
+    int h = r.height();
+    int rs = pf.redShift, gs = pf.greenShift, bs = pf.blueShift;
+    int rMax, gMax, bMax, srcPixelSize;
+    if (cutZeros) {
+      rMax = gMax = bMax = 0xff;
+      srcPixelSize = 3;
+    } else {
+      rMax = pf.redMax; gMax = pf.greenMax; bMax = pf.blueMax;
+      srcPixelSize = pf.bpp / 8;
+    }
 
-    int x, y, c;
-    byte[] prevRow = new byte[TIGHT_MAX_WIDTH*3];
-    byte[] thisRow = new byte[TIGHT_MAX_WIDTH*3];
-    byte[] pix = new byte[3];
-    int[] est = new int[3];
-
-    // Set up shortcut variables
-    int rectHeight = r.height();
-    int rectWidth = r.width();
-
-    for (y = 0; y < rectHeight; y++) {
-      /* First pixel in a row */
-      for (c = 0; c < 3; c++) {
-        pix[c] = (byte)(netbuf[y*rectWidth*3+c] + prevRow[c]);
-        thisRow[c] = pix[c];
-      }
-      serverpf.bufferFromRGB(buf, y*stride, pix, 0, 1);
-
-      /* Remaining pixels of a row */
-      for (x = 1; x < rectWidth; x++) {
-        for (c = 0; c < 3; c++) {
-          est[c] = (int)(prevRow[x*3+c] + pix[c] - prevRow[(x-1)*3+c]);
-          if (est[c] > 0xFF) {
-            est[c] = 0xFF;
-          } else if (est[c] < 0) {
-            est[c] = 0;
-          }
-          pix[c] = (byte)(netbuf[(y*rectWidth+x)*3+c] + est[c]);
-          thisRow[x*3+c] = pix[c];
+    for (int y = 0; y < h; y++) {
+      int row = y * stride;
+      int above = row - stride;
+
+      if (cutZeros)
+        unpackRGBRow(netbuf, y * w * 3, buf, row, w, rs, gs, bs);
+      else
+        unpackRow(netbuf, y * w * srcPixelSize, buf, row, w, srcPixelSize,
+                  pf.bigEndian);
+
+      // Left and upper-left neighbours start out as zero.
+      int lr = 0, lg = 0, lb = 0;
+      int ulr = 0, ulg = 0, ulb = 0;
+
+      for (int x = 0; x < w; x++) {
+        int d = buf[row + x];
+
+        int ur = 0, ug = 0, ub = 0;
+        if (y > 0) {
+          int up = buf[above + x];
+          ur = (up >> rs) & rMax;
+          ug = (up >> gs) & gMax;
+          ub = (up >> bs) & bMax;
         }
-        serverpf.bufferFromRGB(buf, y*stride+x, pix, 0, 1);
-      }
 
-      System.arraycopy(thisRow, 0, prevRow, 0, prevRow.length);
+        int er = ur + lr - ulr;
+        int eg = ug + lg - ulg;
+        int eb = ub + lb - ulb;
+        er = Math.max(0, Math.min(er, rMax));
+        eg = Math.max(0, Math.min(eg, gMax));
+        eb = Math.max(0, Math.min(eb, bMax));
+
+        lr = ((d >> rs) + er) & rMax;
+        lg = ((d >> gs) + eg) & gMax;
+        lb = ((d >> bs) + eb) & bMax;
+        ulr = ur; ulg = ug; ulb = ub;
+
+        buf[row + x] = lr << rs | lg << gs | lb << bs;
+      }
     }
   }
 
-  final private void FilterGradient(byte[] netbuf, int[] buf, int stride,
-                                    Rect r)
-  {
-
-    int x, y, c;
-    byte[] prevRow = new byte[TIGHT_MAX_WIDTH];
-    byte[] thisRow = new byte[TIGHT_MAX_WIDTH];
-    byte[] pix = new byte[3];
-    int[] est = new int[3];
-
-    // Set up shortcut variables
-    int rectHeight = r.height();
-    int rectWidth = r.width();
-
-    for (y = 0; y < rectHeight; y++) {
-      /* First pixel in a row */
-      // FIXME
-      //serverpf.rgbFromBuffer(pix, 0, netbuf, y*rectWidth, 1, cm);
-      for (c = 0; c < 3; c++)
-        pix[c] += prevRow[c];
-
-      System.arraycopy(pix, 0, thisRow, 0, pix.length);
-
-      serverpf.bufferFromRGB(buf, y*stride, pix, 0, 1);
-
-      /* Remaining pixels of a row */
-      for (x = 1; x < rectWidth; x++) {
-        for (c = 0; c < 3; c++) {
-          est[c] = (int)(prevRow[x*3+c] + pix[c] - prevRow[(x-1)*3+c]);
-          if (est[c] > 0xff) {
-            est[c] = 0xff;
-          } else if (est[c] < 0) {
-            est[c] = 0;
-          }
-        }
+  // unpackRGBRow() places n pixels of packed R, G, B bytes at the given
+  // shifts.
 
-        // FIXME
-        //serverpf.rgbFromBuffer(pix, 0, netbuf, y*rectWidth+x, 1, cm);
-        for (c = 0; c < 3; c++)
-          pix[c] += est[c];
+  private static void unpackRGBRow(byte[] src, int srcPtr, int[] dst,
+                                   int dstPtr, int n, int rs, int gs, int bs)
+  {
+    int end = dstPtr + n;
+    for (; dstPtr < end; srcPtr += 3)
+      dst[dstPtr++] = (src[srcPtr] & 0xff) << rs |
+                      (src[srcPtr+1] & 0xff) << gs |
+                      (src[srcPtr+2] & 0xff) << bs;
+  }
 
-        System.arraycopy(pix, 0, thisRow, x*3, pix.length);
+  // unpackRow() turns n pixels of the server's format into pixel values.
 
-        serverpf.bufferFromRGB(buf, y*stride+x, pix, 0, 1);
+  private static void unpackRow(byte[] src, int srcPtr, int[] dst, int dstPtr,
+                                int n, int bytesPerPixel, boolean bigEndian)
+  {
+    int end = dstPtr + n;
+    switch (bytesPerPixel) {
+    case 1:
+      while (dstPtr < end)
+        dst[dstPtr++] = src[srcPtr++] & 0xff;
+      break;
+    case 2:
+      if (bigEndian) {
+        for (; dstPtr < end; srcPtr += 2)
+          dst[dstPtr++] = (src[srcPtr] & 0xff) << 8 | (src[srcPtr+1] & 0xff);
+      } else {
+        for (; dstPtr < end; srcPtr += 2)
+          dst[dstPtr++] = (src[srcPtr+1] & 0xff) << 8 | (src[srcPtr] & 0xff);
       }
-
-      System.arraycopy(thisRow, 0, prevRow, 0, prevRow.length);
+      break;
+    case 4:
+      if (bigEndian) {
+        for (; dstPtr < end; srcPtr += 4)
+          dst[dstPtr++] = (src[srcPtr] & 0xff) << 24 |
+                          (src[srcPtr+1] & 0xff) << 16 |
+                          (src[srcPtr+2] & 0xff) << 8 |
+                          (src[srcPtr+3] & 0xff);
+      } else {
+        for (; dstPtr < end; srcPtr += 4)
+          dst[dstPtr++] = (src[srcPtr+3] & 0xff) << 24 |
+                          (src[srcPtr+2] & 0xff) << 16 |
+                          (src[srcPtr+1] & 0xff) << 8 |
+                          (src[srcPtr] & 0xff);
+      }
+      break;
+    default:
+      throw new Exception("TightDecoder: unsupported pixel size "+bytesPerPixel);
     }
   }
 
   private CMsgReader reader;
+  private CMsgHandler handler;
   private ZlibInStream[] zis;
+  private ExecutorService[] streams = new ExecutorService[4];
+  private ExecutorService jpegPool;
+  private JpegDecompressor jpeg;
+  private LinkedList<PendingRect> pending = new LinkedList<PendingRect>();
   private PixelFormat serverpf;
   private PixelFormat clientpf;
   static LogWriter vlog = new LogWriter("TightDecoder");
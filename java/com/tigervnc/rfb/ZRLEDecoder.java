@@ -16,6 +16,18 @@
  * USA.
  */
 
+//
+// The tiles of a row are decoded side by side into one buffer, which is then
+// handed to the framebuffer with a single imageRect(), so that the per call
+// costs (cursor checks, damage) are paid once per row of tiles rather than
+// once per tile.  RLE tiles are expanded into a tile sized scratch buffer
+// first, where runs can be laid down without regard to the row ends.
+//
+// Bytes are taken straight out of the ZlibInStream's buffer; zb, zptr and
+// zend are a local copy of its buffer pointers, and the stream is only
+// called on to refill it.
+//
+
 package com.tigervnc.rfb;
 
 import com.tigervnc.rdr.*;
@@ -24,38 +36,45 @@ public class ZRLEDecoder extends Decoder {
 
   public ZRLEDecoder(CMsgReader reader_) {
     reader = reader_;
-    zis = new ZlibInStream();
+    zis = new ZlibInStream(
+      ZlibInflater.create(reader.handler.cp.zlibInflater));
   }
 
   public void readRect(Rect r, CMsgHandler handler) {
     InStream is = reader.getInStream();
-    int[] buf = reader.getImageBuf(64 * 64 * 4);
-    int bpp = handler.cp.pf().bpp;
-    int bytesPerPixel = (bpp > 24 ? 3 : bpp / 8);
-    boolean bigEndian = handler.cp.pf().bigEndian;
+    PixelConverter pc = handler.cp.converter().compact();
+    int stride = r.width();
+    int[] buf = reader.getImageBuf(stride * 64);
 
     int length = is.readU32();
     zis.setUnderlying(is, length);
-    Rect t = new Rect();
+    zb = zis.getbuf();
+    zptr = zis.getptr();
+    zend = zis.getend();
+
+    Rect row = new Rect();
+    row.tl.x = r.tl.x;
+    row.br.x = r.br.x;
 
-    for (t.tl.y = r.tl.y; t.tl.y < r.br.y; t.tl.y += 64) {
+    for (row.tl.y = r.tl.y; row.tl.y < r.br.y; row.tl.y += 64) {
 
-      t.br.y = Math.min(r.br.y, t.tl.y + 64);
+      row.br.y = Math.min(r.br.y, row.tl.y + 64);
+      int th = row.height();
 
-      for (t.tl.x = r.tl.x; t.tl.x < r.br.x; t.tl.x += 64) {
+      for (int tx = r.tl.x; tx < r.br.x; tx += 64) {
 
-        t.br.x = Math.min(r.br.x, t.tl.x + 64);
+        int tw = Math.min(r.br.x, tx + 64) - tx;
+        int base = tx - r.tl.x;
 
-        int mode = zis.readU8();
+        int mode = readU8();
         boolean rle = (mode & 128) != 0;
         int palSize = mode & 127;
-        int[] palette = new int[128];
 
-        zis.readPixels(palette, palSize, bytesPerPixel, bigEndian);
+        for (int i = 0; i < palSize; i++)
+          palette[i] = readPixel(pc);
 
         if (palSize == 1) {
-          int pix = palette[0];
-          handler.fillRect(t, pix);
+          fill(buf, base, stride, tw, th, palette[0]);
           continue;
         }
 
@@ -64,93 +83,132 @@ public class ZRLEDecoder extends Decoder {
 
             // raw
 
-            zis.readPixels(buf, t.area(), bytesPerPixel, bigEndian);
+            zis.setptr(zptr);
+            for (int y = 0; y < th; y++)
+              pc.readPixels(zis, buf, base + y * stride, tw);
+            sync();
 
           } else {
 
             // packed pixels
             int bppp = ((palSize > 16) ? 8 :
                         ((palSize > 4) ? 4 : ((palSize > 2) ? 2 : 1)));
-
-            int ptr = 0;
-
-            for (int i = 0; i < t.height(); i++) {
-              int eol = ptr + t.width();
+            int mask = ((1 << bppp) - 1) & 127;
+            int rowBytes = (tw * bppp + 7) / 8;
+
+            for (int y = 0; y < th; y++) {
+              if (zend - zptr < rowBytes)
+                refill(rowBytes);
+              int ptr = base + y * stride;
+              int eol = ptr + tw;
               int b = 0;
               int nbits = 0;
 
               while (ptr < eol) {
                 if (nbits == 0) {
-                  b = zis.readU8();
+                  b = zb[zptr++] & 0xff;
                   nbits = 8;
                 }
                 nbits -= bppp;
-                int index = (b >> nbits) & ((1 << bppp) - 1) & 127;
-                buf[ptr++] = palette[index];
+                buf[ptr++] = palette[(b >> nbits) & mask];
               }
             }
           }
 
         } else {
 
-          if (palSize == 0) {
+          // plain RLE when palSize is 0, otherwise palette RLE
+
+          int ptr = 0;
+          int end = tw * th;
+          while (ptr < end) {
+            int pix;
+            int len = 1;
+            if (palSize == 0) {
+              pix = readPixel(pc);
+              len += readRunLength();
+            } else {
+              int index = readU8();
+              if ((index & 128) != 0)
+                len += readRunLength();
+              pix = palette[index & 127];
+            }
 
-            // plain RLE
+            if (!(len <= end - ptr))
+              throw new Exception("ZRLEDecoder: assertion (len <= end - ptr)"
+                                  +" failed");
 
-            int ptr = 0;
-            int end = ptr + t.area();
-            while (ptr < end) {
-              int pix = zis.readPixel(bytesPerPixel, bigEndian);
-              int len = 1;
-              int b;
-              do {
-                b = zis.readU8();
-                len += b;
-              } while (b == 255);
+            while (len-- > 0) tile[ptr++] = pix;
+          }
 
-              if (!(len <= end - ptr))
-                throw new Exception("ZRLEDecoder: assertion (len <= end - ptr)"
-                                    +" failed");
+          for (int y = 0; y < th; y++)
+            System.arraycopy(tile, y * tw, buf, base + y * stride, tw);
+        }
+      }
 
-              while (len-- > 0) buf[ptr++] = pix;
-            }
-          } else {
+      handler.imageRect(row, buf);
+    }
 
-            // palette RLE
-
-            int ptr = 0;
-            int end = ptr + t.area();
-            while (ptr < end) {
-              int index = zis.readU8();
-              int len = 1;
-              if ((index & 128) != 0) {
-                int b;
-                do {
-                  b = zis.readU8();
-                  len += b;
-                } while (b == 255);
-
-                if (!(len <= end - ptr))
-                  throw new Exception("ZRLEDecoder: assertion "
-                                      +"(len <= end - ptr) failed");
-              }
+    zis.setptr(zptr);
+    zis.reset();
+    zb = null;
+  }
 
-              index &= 127;
+  private static void fill(int[] buf, int ptr, int stride, int w, int h,
+                           int pix) {
+    for (int y = 0; y < h; y++) {
+      java.util.Arrays.fill(buf, ptr, ptr + w, pix);
+      ptr += stride;
+    }
+  }
 
-              int pix = palette[index];
+  private int readU8() {
+    if (zptr == zend)
+      refill(1);
+    return zb[zptr++] & 0xff;
+  }
 
-              while (len-- > 0) buf[ptr++] = pix;
-            }
-          }
-        }
+  private int readPixel(PixelConverter pc) {
+    int bytesPerPixel = pc.bytesPerPixel();
+    if (zend - zptr < bytesPerPixel)
+      refill(bytesPerPixel);
+    int p = pc.convertPixel(zb, zptr);
+    zptr += bytesPerPixel;
+    return p;
+  }
 
-        handler.imageRect(t, buf);
-      }
-    }
+  // readRunLength() reads the bytes of a run length after the first pixel,
+  // which go on for as long as they are 255.
+
+  private int readRunLength() {
+    int len = 0;
+    int b;
+    do {
+      b = readU8();
+      len += b;
+    } while (b == 255);
+    return len;
+  }
 
-    zis.reset();
+  // refill() makes sure that at least n bytes are buffered, which moves the
+  // data within the stream's buffer.
+
+  private void refill(int n) {
+    zis.setptr(zptr);
+    zis.check(n);
+    sync();
+  }
+
+  private void sync() {
+    zb = zis.getbuf();
+    zptr = zis.getptr();
+    zend = zis.getend();
   }
 
   CMsgReader reader;
   ZlibInStream zis;
+  private int[] palette = new int[128];
+  private int[] tile = new int[64 * 64];
+  private byte[] zb;
+  private int zptr, zend;
 }
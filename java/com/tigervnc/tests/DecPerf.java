@@ -0,0 +1,275 @@
+/*
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// DecPerf is the Java counterpart of tests/decperf.cxx.  It reads files
+// produced by TightVNC's/TurboVNC's compare-encodings, which are a dump of
+// the RFB protocol from the server side from the ServerInit message and
+// forward, and decodes them from memory into a ManagedPixelBuffer.  As in
+// decperf, the data is assumed to be in a bgr888 (LE) pixel format.
+//
+// For every file (name them after their content, e.g. text.rfb, photo.rfb,
+// video.rfb) it prints the median wall time of the whole run and, for each
+// encoding seen, the decode rate in MPixels/s and the bytes allocated per
+// pixel by the decoding thread.  Allocation figures need a JVM that
+// implements com.sun.management.ThreadMXBean.
+//
+// -inflater picks the zlib decompressor (see ZlibInflater) and may be given
+// more than once, to run every file with each in turn.
+//
+// Usage: java com.tigervnc.tests.DecPerf [-parallel] [-inflater <name>]...
+//                                        <rfb file>...
+//
+
+package com.tigervnc.tests;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+
+import com.tigervnc.rdr.*;
+import com.tigervnc.rfb.*;
+
+public class DecPerf {
+
+  // The files do not say what format their pixel data is in; ServerInit
+  // gives the server's own format, not the one the recording client asked
+  // for.  setPixelFormat() below puts this one in its place.
+  static final PixelFormat filePF =
+    new PixelFormat(32, 24, false, true, 255, 255, 255, 0, 8, 16);
+
+  static final int warmupCount = 3;
+  static final int runCount = 9;
+
+  static class EncodingStats {
+    long rects;
+    long pixels;
+    long ns;
+    long allocated;
+  }
+
+  static class CConn extends CMsgHandler {
+
+    public CConn(byte[] data, boolean parallel, int inflater) {
+      cp.parallelTightDecoding = parallel;
+      cp.zlibInflater = inflater;
+      reader = new CMsgReaderV3(this, new MemInStream(data, 0, data.length));
+      stats = new EncodingStats[Encodings.encodingMax+1];
+    }
+
+    public void run() {
+      reader.readServerInit();
+      try {
+        while (true)
+          reader.readMsg();
+      } catch (EndOfStream e) {
+      } finally {
+        reader.close();
+      }
+    }
+
+    public PixelFormat getPreferredPF() { return filePF; }
+
+    public void setDesktopSize(int w, int h) {
+      super.setDesktopSize(w, h);
+      pb.setSize(cp.width, cp.height);
+    }
+
+    public void setPixelFormat(PixelFormat pf) {
+      // Override format
+      super.setPixelFormat(filePF);
+      pb.setPF(cp.pf());
+    }
+
+    public void beginRect(Rect r, int encoding) {
+      allocStart = allocatedBytes();
+      start = System.nanoTime();
+    }
+
+    public void endRect(Rect r, int encoding) {
+      long ns = System.nanoTime() - start;
+      if (encoding < 0 || encoding > Encodings.encodingMax)
+        return;
+      if (stats[encoding] == null)
+        stats[encoding] = new EncodingStats();
+      EncodingStats s = stats[encoding];
+      s.rects++;
+      s.pixels += r.area();
+      s.ns += ns;
+      if (allocStart >= 0)
+        s.allocated += allocatedBytes() - allocStart;
+    }
+
+    public void fillRect(Rect r, int pix) {
+      pb.fillRect(r.tl.x, r.tl.y, r.width(), r.height(), pix);
+    }
+
+    public void imageRect(Rect r, Object pixels) {
+      if (pixels instanceof java.awt.image.BufferedImage) {
+        java.awt.image.BufferedImage tile =
+          (java.awt.image.BufferedImage)pixels;
+        pixels = tile.getRGB(0, 0, r.width(), r.height(), null, 0, r.width());
+      }
+      pb.imageRect(r.tl.x, r.tl.y, r.width(), r.height(), (int[])pixels);
+    }
+
+    public void copyRect(Rect r, int srcX, int srcY) {
+      pb.copyRect(r.tl.x, r.tl.y, r.width(), r.height(), srcX, srcY);
+    }
+
+    EncodingStats[] stats;
+
+    private CMsgReaderV3 reader;
+    private ManagedPixelBuffer pb = new ManagedPixelBuffer();
+    private long start;
+    private long allocStart;
+  }
+
+  // allocatedBytes() returns the number of bytes allocated so far by the
+  // calling thread, or -1 if the JVM cannot tell.
+
+  static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean =
+      ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean))
+      return -1;
+    return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(
+      Thread.currentThread().getId());
+  }
+
+  static byte[] readFile(String fn) throws IOException {
+    File f = new File(fn);
+    byte[] data = new byte[(int)f.length()];
+    DataInputStream is = new DataInputStream(new FileInputStream(f));
+    try {
+      is.readFully(data);
+    } finally {
+      is.close();
+    }
+    return data;
+  }
+
+  static void runFile(String fn, boolean parallel, int inflater) {
+    byte[] data;
+    try {
+      data = readFile(fn);
+    } catch (IOException e) {
+      System.err.println("Failed to open rfb file: "+e.getMessage());
+      System.exit(1);
+      return;
+    }
+
+    for (int i = 0; i < warmupCount; i++)
+      new CConn(data, parallel, inflater).run();
+
+    double[] times = new double[runCount];
+    EncodingStats[] total = new EncodingStats[Encodings.encodingMax+1];
+    for (int i = 0; i < runCount; i++) {
+      CConn cc = new CConn(data, parallel, inflater);
+      long start = System.nanoTime();
+      cc.run();
+      times[i] = (System.nanoTime() - start) / 1e9;
+
+      for (int e = 0; e <= Encodings.encodingMax; e++) {
+        EncodingStats s = cc.stats[e];
+        if (s == null)
+          continue;
+        if (total[e] == null)
+          total[e] = new EncodingStats();
+        total[e].rects += s.rects;
+        total[e].pixels += s.pixels;
+        total[e].ns += s.ns;
+        total[e].allocated += s.allocated;
+      }
+    }
+
+    // Calculate median and median deviation
+    double[] dev = new double[runCount];
+    java.util.Arrays.sort(times);
+    double median = times[runCount/2];
+    for (int i = 0; i < runCount; i++)
+      dev[i] = Math.abs((times[i] - median) / median) * 100;
+    java.util.Arrays.sort(dev);
+    double meddev = dev[runCount/2];
+
+    System.out.println(fn+" ("+filePF.print()+
+                       (parallel ? ", parallel Tight" : "")+", "+
+                       ZlibInflater.backendNames[inflater]+" inflater)");
+    System.out.println(String.format("  Wall time: %g s (+/- %g %%)",
+                                     median, meddev));
+    if (parallel)
+      System.out.println("  Rates and allocation below cover the RFB thread "+
+                         "only, not the Tight workers");
+    boolean haveAlloc = allocatedBytes() >= 0;
+    for (int e = 0; e <= Encodings.encodingMax; e++) {
+      EncodingStats s = total[e];
+      if (s == null || s.pixels == 0)
+        continue;
+      String line = String.format("  %-9s %8d rects %10.1f MPixels/s",
+                                  Encodings.encodingName(e),
+                                  s.rects / runCount,
+                                  s.pixels * 1000.0 / Math.max(s.ns, 1));
+      if (haveAlloc)
+        line += String.format(" %8.2f bytes/pixel %8.1f MB/s allocated",
+                              (double)s.allocated / s.pixels,
+                              s.allocated * 1000.0 / Math.max(s.ns, 1));
+      System.out.println(line);
+    }
+  }
+
+  public static void main(String[] argv) {
+    boolean parallel = false;
+    java.util.ArrayList<Integer> inflaters = new java.util.ArrayList<Integer>();
+    int first = 0;
+
+    while (first < argv.length) {
+      if (argv[first].equals("-parallel")) {
+        parallel = true;
+        first++;
+      } else if (argv[first].equals("-inflater") && first + 1 < argv.length) {
+        int inflater = ZlibInflater.backendNum(argv[first+1]);
+        if (inflater < 0) {
+          System.err.println("Unknown inflater "+argv[first+1]);
+          System.exit(1);
+        }
+        inflaters.add(inflater);
+        first += 2;
+      } else {
+        break;
+      }
+    }
+
+    if (argv.length <= first) {
+      System.out.println("Syntax: DecPerf [-parallel] [-inflater <name>]... "+
+                         "<rfb file>...");
+      System.exit(1);
+    }
+
+    if (inflaters.isEmpty())
+      inflaters.add(ZlibInflater.JZLIB);
+
+    for (int i = first; i < argv.length; i++) {
+      for (int inflater : inflaters) {
+        try {
+          runFile(argv[i], parallel, inflater);
+        } catch (com.tigervnc.rdr.Exception e) {
+          System.err.println("Failed to run rfb file: "+e.getMessage());
+          System.exit(1);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// SessionReplay plays back a session recorded with the viewer's
+// RecordSession parameter through CMsgReaderV3, decoding into a headless
+// ManagedPixelBuffer.  By default it runs at full speed and reports the
+// decode throughput.  With -paced, data is released at the rate it was
+// originally received, and it also reports frame latency: the time from
+// the arrival of an update's data to the end of its decoding.
+//
+// Usage: java com.tigervnc.tests.SessionReplay [-paced] <recording>
+//
+
+package com.tigervnc.tests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import com.tigervnc.rdr.*;
+import com.tigervnc.rfb.*;
+
+public class SessionReplay {
+
+  static final PixelFormat fbPF =
+    new PixelFormat(32, 24, false, true, 255, 255, 255, 16, 8, 0);
+
+  static class CConn extends CMsgHandler {
+
+    public CConn(SessionInStream is_) {
+      is = is_;
+      reader = new CMsgReaderV3(this, is);
+      pb.setPF(fbPF);
+      setDesktopSize(is.width(), is.height());
+      setPixelFormat(is.pf());
+      setName(is.name());
+    }
+
+    public void run() {
+      try {
+        while (true) {
+          PixelFormat pf;
+          while ((pf = is.pixelFormatChange()) != null)
+            setPixelFormat(pf);
+          reader.readMsg();
+        }
+      } catch (EndOfStream e) {
+      } finally {
+        reader.close();
+      }
+    }
+
+    public PixelFormat getPreferredPF() { return cp.pf(); }
+
+    public void setDesktopSize(int w, int h) {
+      super.setDesktopSize(w, h);
+      pb.setSize(cp.width, cp.height);
+    }
+
+    public void framebufferUpdateStart() {
+      updateArrival = is.dataTime();
+    }
+
+    public void framebufferUpdateEnd() {
+      updates++;
+      latencies.add(Integer.valueOf(is.playbackTime() - updateArrival));
+    }
+
+    public void endRect(Rect r, int encoding) {
+      if (encoding >= 0)
+        pixels += r.area();
+    }
+
+    public void fillRect(Rect r, int pix) {
+      pb.fillRect(r.tl.x, r.tl.y, r.width(), r.height(), pix);
+    }
+
+    public void imageRect(Rect r, Object pixels) {
+      if (pixels instanceof java.awt.image.BufferedImage) {
+        java.awt.image.BufferedImage tile =
+          (java.awt.image.BufferedImage)pixels;
+        pixels = tile.getRGB(0, 0, r.width(), r.height(), null, 0, r.width());
+      }
+      pb.imageRect(r.tl.x, r.tl.y, r.width(), r.height(), (int[])pixels);
+    }
+
+    public void copyRect(Rect r, int srcX, int srcY) {
+      pb.copyRect(r.tl.x, r.tl.y, r.width(), r.height(), srcX, srcY);
+    }
+
+    long updates;
+    long pixels;
+    ArrayList<Integer> latencies = new ArrayList<Integer>();
+
+    private SessionInStream is;
+    private CMsgReaderV3 reader;
+    private ManagedPixelBuffer pb = new ManagedPixelBuffer();
+    private int updateArrival;
+  }
+
+  public static void main(String[] argv) {
+    boolean paced = false;
+    int first = 0;
+
+    if (argv.length > 0 && argv[0].equals("-paced")) {
+      paced = true;
+      first = 1;
+    }
+
+    if (argv.length != first + 1) {
+      System.out.println("Syntax: SessionReplay [-paced] <recording>");
+      System.exit(1);
+    }
+
+    CConn cc = null;
+    SessionInStream is = null;
+    long start = 0, time = 0;
+    try {
+      is = new SessionInStream(argv[first], paced);
+      cc = new CConn(is);
+      start = System.nanoTime();
+      cc.run();
+      time = System.nanoTime() - start;
+      is.close();
+    } catch (com.tigervnc.rdr.Exception e) {
+      System.err.println("Failed to replay session: "+e.getMessage());
+      System.exit(1);
+    }
+
+    System.out.println(argv[first]+" ("+is.width()+"x"+is.height()+", "+
+                       is.pf().print()+")");
+    System.out.println(String.format("  %d updates, %.1f MPixels in %g s: "+
+                                     "%.1f MPixels/s, %.1f updates/s",
+                                     cc.updates, cc.pixels / 1e6, time / 1e9,
+                                     cc.pixels * 1000.0 / Math.max(time, 1),
+                                     cc.updates * 1e9 / Math.max(time, 1)));
+
+    if (paced && !cc.latencies.isEmpty()) {
+      ArrayList<Integer> l = cc.latencies;
+      Collections.sort(l);
+      System.out.println(String.format("  Frame latency: median %d ms, "+
+                                       "95th percentile %d ms, max %d ms",
+                                       l.get(l.size()/2),
+                                       l.get(l.size()*95/100),
+                                       l.get(l.size()-1)));
+    }
+  }
+}
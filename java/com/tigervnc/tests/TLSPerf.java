@@ -0,0 +1,161 @@
+/*
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// TLSPerf measures how fast the viewer's TLS transport (SSLEngineManager
+// and TLSInStream) receives data, compared with a plain FdInStream over the
+// same connection type.  A server thread on the loopback interface sends the
+// data, using the anonymous Diffie-Hellman cipher suites which the viewer
+// uses for TLSNone, so that no certificates are needed.
+//
+// Usage: java com.tigervnc.tests.TLSPerf [<megabytes>]
+//
+
+package com.tigervnc.tests;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import javax.net.ssl.*;
+
+import com.tigervnc.network.*;
+import com.tigervnc.rdr.*;
+
+public class TLSPerf {
+
+  static final String[] anonSuites = {
+    "TLS_DH_anon_WITH_AES_128_GCM_SHA256",
+    "TLS_DH_anon_WITH_AES_128_CBC_SHA256",
+    "TLS_DH_anon_WITH_AES_128_CBC_SHA"
+  };
+
+  static final int chunkSize = 65536;
+
+  static class Sender extends Thread {
+
+    public Sender(ServerSocket listener_, long bytes_) {
+      listener = listener_;
+      bytes = bytes_;
+      setDaemon(true);
+    }
+
+    public void run() {
+      try {
+        java.net.Socket s = listener.accept();
+        if (s instanceof SSLSocket)
+          ((SSLSocket)s).setEnabledCipherSuites(enabledSuites(
+            ((SSLSocket)s).getSupportedCipherSuites()));
+        OutputStream out = s.getOutputStream();
+        byte[] buf = new byte[chunkSize];
+        for (int i = 0; i < buf.length; i++)
+          buf[i] = (byte)i;
+        for (long sent = 0; sent < bytes; sent += buf.length)
+          out.write(buf, 0, (int)Math.min(buf.length, bytes - sent));
+        out.flush();
+        s.close();
+      } catch (java.lang.Exception e) {
+        System.err.println("Sender failed: "+e);
+      }
+    }
+
+    private ServerSocket listener;
+    private long bytes;
+  }
+
+  static String[] enabledSuites(String[] supported) {
+    ArrayList<String> suites = new ArrayList<String>();
+    for (int i = 0; i < anonSuites.length; i++)
+      for (int j = 0; j < supported.length; j++)
+        if (supported[j].equals(anonSuites[i]))
+          suites.add(anonSuites[i]);
+    if (suites.isEmpty())
+      throw new IllegalStateException("No anonymous cipher suites available");
+    return suites.toArray(new String[0]);
+  }
+
+  static long receive(InStream is, long bytes) {
+    byte[] buf = new byte[chunkSize];
+    long start = System.nanoTime();
+    for (long got = 0; got < bytes; got += buf.length)
+      is.readBytes(buf, 0, (int)Math.min(buf.length, bytes - got));
+    return System.nanoTime() - start;
+  }
+
+  static long runPlain(long bytes) throws java.lang.Exception {
+    ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    new Sender(listener, bytes).start();
+    TcpSocket sock = new TcpSocket("127.0.0.1", listener.getLocalPort());
+    sock.inStream().setBlocking();
+    long time = receive(sock.inStream(), bytes);
+    sock.shutdown();
+    sock.close();
+    listener.close();
+    return time;
+  }
+
+  static long runTLS(SSLContext ctx, long bytes) throws java.lang.Exception {
+    SSLServerSocket listener = (SSLServerSocket)
+      ctx.getServerSocketFactory().createServerSocket(0, 1,
+        InetAddress.getLoopbackAddress());
+    new Sender(listener, bytes).start();
+    TcpSocket sock = new TcpSocket("127.0.0.1", listener.getLocalPort());
+    sock.inStream().setBlocking();
+
+    SSLEngine engine = ctx.createSSLEngine();
+    engine.setUseClientMode(true);
+    engine.setEnabledCipherSuites(enabledSuites(engine.getSupportedCipherSuites()));
+    SSLEngineManager manager =
+      new SSLEngineManager(engine, sock.inStream(), sock.outStream());
+    manager.doHandshake();
+    InStream is = new TLSInStream(sock.inStream(), manager);
+
+    long time = receive(is, bytes);
+    sock.shutdown();
+    sock.close();
+    listener.close();
+    return time;
+  }
+
+  static void report(String name, long bytes, long time) {
+    System.out.println(String.format("%-6s %.0f MB in %.3f s: %.1f MB/s",
+                                     name, bytes / 1e6, time / 1e9,
+                                     bytes * 1000.0 / Math.max(time, 1)));
+  }
+
+  public static void main(String[] argv) throws java.lang.Exception {
+    long bytes = 256L << 20;
+    if (argv.length > 0)
+      bytes = Long.parseLong(argv[0]) << 20;
+
+    // The anonymous suites are disabled by default in newer JREs.
+    java.security.Security.setProperty("jdk.tls.disabledAlgorithms", "SSLv3, RC4");
+
+    SSLContext ctx = SSLContext.getInstance("TLSv1.2");
+    ctx.init(null, null, null);
+
+    // Warm up
+    runPlain(bytes / 8);
+    runTLS(ctx, bytes / 8);
+
+    report("TCP", bytes, runPlain(bytes));
+    report("TLS", bytes, runTLS(ctx, bytes));
+
+    // SSLEngineManager's task executor would keep the JVM alive.
+    System.exit(0);
+  }
+}
@@ -25,21 +25,36 @@ import java.awt.image.*;
 import com.tigervnc.rfb.*;
 import com.tigervnc.rfb.Exception;
 
-public class BIPixelBuffer extends PlatformPixelBuffer implements ImageObserver
+public class BIPixelBuffer extends PlatformPixelBuffer
 {
   public BIPixelBuffer(int w, int h, CConn cc_, DesktopWindow desktop_) {
     super(w, h, cc_, desktop_);
-    clip = new Rectangle();
   }
 
+  // setPF() only has to make a new image if the way pixels are stored has
+  // changed, which it does not between true colour formats.
+
   public void setPF(PixelFormat pf) {
+    ColorModel oldCM = cm;
     super.setPF(pf);
-    createImage(width(), height());
+    if (image == null || cm != oldCM)
+      createImage(width(), height());
   }
 
-  public void updateColourMap() {
+  // updateColourMap() puts the new colour map into effect by wrapping the
+  // existing raster in a new image, so the pixels are kept and nothing has
+  // to be reallocated.
+
+  public synchronized void updateColourMap() {
     super.updateColourMap();
-    createImage(width_, height_);
+    if (image == null || !(image.getColorModel() instanceof IndexColorModel)) {
+      createImage(width_, height_);
+      return;
+    }
+    image = new BufferedImage(cm, image.getRaster(), false, null);
+    if (presentImage != null)
+      presentImage = new BufferedImage(cm, presentImage.getRaster(), false,
+                                       null);
   }
 
   // resize() resizes the image, preserving the image data where possible.
@@ -52,7 +67,7 @@ public class BIPixelBuffer extends PlatformPixelBuffer implements ImageObserver
     createImage(w, h);
   }
 
-  private void createImage(int w, int h) {
+  protected void createImage(int w, int h) {
     if (w == 0 || h == 0) return;
     WritableRaster wr;
     if (cm instanceof IndexColorModel)
@@ -61,51 +76,120 @@ public class BIPixelBuffer extends PlatformPixelBuffer implements ImageObserver
       wr = ((DirectColorModel)cm).createCompatibleWritableRaster(w, h);
     image = new BufferedImage(cm, wr, true, null);
     db = wr.getDataBuffer();
+
+    // 8 bpp pixels are written straight into the raster's bytes
+    bytes = null;
+    SampleModel sm = wr.getSampleModel();
+    if (db instanceof DataBufferByte) {
+      bytes = ((DataBufferByte)db).getData();
+      byteOffset = db.getOffset();
+      if (sm instanceof ComponentSampleModel && sm.getNumBands() == 1)
+        byteStride = ((ComponentSampleModel)sm).getScanlineStride();
+      else if (sm instanceof SinglePixelPackedSampleModel)
+        byteStride = ((SinglePixelPackedSampleModel)sm).getScanlineStride();
+      else
+        bytes = null;
+    }
+
+    createPresentImage();
+  }
+
+  public void setDoubleBuffered(boolean enable) {
+    doubleBuffered = enable;
+    createPresentImage();
+  }
+
+  public synchronized Image getPresentImage() {
+    return (presentImage != null) ? presentImage : image;
+  }
+
+  // present() copies the given areas of the decoded image to the one used
+  // for painting.
+
+  public synchronized void present(java.util.List<Rect> rects) {
+    if (presentImage == null)
+      return;
+    Rect bounds = new Rect(0, 0, width_, height_);
+    WritableRaster dst = presentImage.getRaster();
+    Raster src = image.getRaster();
+    for (Rect r : rects) {
+      Rect c = r.intersect(bounds);
+      if (c.is_empty())
+        continue;
+      dst.setDataElements(c.tl.x, c.tl.y,
+                          src.createChild(c.tl.x, c.tl.y, c.width(),
+                                          c.height(), 0, 0, null));
+    }
+  }
+
+  private synchronized void createPresentImage() {
+    presentImage = null;
+    if (!doubleBuffered || image == null)
+      return;
+    WritableRaster wr = image.getRaster().createCompatibleWritableRaster();
+    wr.setDataElements(0, 0, image.getRaster());
+    presentImage = new BufferedImage(cm, wr, true, null);
   }
 
   public void fillRect(int x, int y, int w, int h, int pix) {
-    Graphics2D graphics = (Graphics2D)image.getGraphics();
-    switch (format.depth) {
-    case 24:
-      graphics.setColor(new Color(pix));
-      graphics.fillRect(x, y, w, h);
-      break;
-    default:
-      Color color = new Color((0xff << 24) | (cm.getRed(pix) << 16) |
-                              (cm.getGreen(pix) << 8) | (cm.getBlue(pix)));
-      graphics.setColor(color);
-      graphics.fillRect(x, y, w, h);
-      break;
+    if (bytes != null) {
+      int ptr = byteOffset + y * byteStride + x;
+      for (int j = 0; j < h; j++) {
+        java.util.Arrays.fill(bytes, ptr, ptr + w, (byte)pix);
+        ptr += byteStride;
+      }
+      return;
     }
+    Graphics2D graphics = (Graphics2D)image.getGraphics();
+    graphics.setColor(new Color(cm.getRGB(pix)));
+    graphics.fillRect(x, y, w, h);
     graphics.dispose();
   }
 
   public void imageRect(int x, int y, int w, int h, Object pix) {
-    if (pix instanceof Image) {
-      Image img = (Image)pix;
-      clip = new Rectangle(x, y, w, h);
-      synchronized(clip) {
-        tk.prepareImage(img, -1, -1, this);
-        try {
-          clip.wait(1000);
-        } catch (InterruptedException e) {
-          throw new Exception("Error decoding JPEG data");
-        }
+    if (pix instanceof BufferedImage) {
+      // Decoded JPEG tile.  If it shares our pixel layout then its pixels
+      // can be stored directly, otherwise let Java2D convert them.
+      BufferedImage tile = (BufferedImage)pix;
+      if (tile.getType() == BufferedImage.TYPE_INT_RGB && isRGB888()) {
+        int[] data = ((DataBufferInt)tile.getRaster().getDataBuffer()).getData();
+        image.getSampleModel().setDataElements(x, y, w, h, data, db);
+      } else {
+        Graphics2D graphics = (Graphics2D)image.getGraphics();
+        graphics.drawImage(tile, x, y, null);
+        graphics.dispose();
       }
-      clip = null;
-      img.flush();
-    } else {
-      if (image.getSampleModel().getTransferType() == DataBuffer.TYPE_BYTE) {
-        byte[] bytes = new byte[((int[])pix).length];
-        for (int i = 0; i < bytes.length; i++)
-          bytes[i] = (byte)((int[])pix)[i];
-        pix = bytes;
+    } else if (bytes != null) {
+      int[] src = (int[])pix;
+      int dest = byteOffset + y * byteStride + x;
+      int i = 0;
+      for (int j = 0; j < h; j++) {
+        for (int k = 0; k < w; k++)
+          bytes[dest + k] = (byte)src[i++];
+        dest += byteStride;
       }
+    } else {
       image.getSampleModel().setDataElements(x, y, w, h, pix, db);
     }
   }
 
   public void copyRect(int x, int y, int w, int h, int srcX, int srcY) {
+    if (bytes != null) {
+      int dest = byteOffset + y * byteStride + x;
+      int src = byteOffset + srcY * byteStride + srcX;
+      int inc = byteStride;
+      if (y > srcY) {
+        src += (h-1) * inc;
+        dest += (h-1) * inc;
+        inc = -inc;
+      }
+      for (int j = 0; j < h; j++) {
+        System.arraycopy(bytes, src, bytes, dest, w);
+        src += inc;
+        dest += inc;
+      }
+      return;
+    }
     Graphics2D graphics = (Graphics2D)image.getGraphics();
     graphics.copyArea(srcX, srcY, w, h, x - srcX, y - srcY);
     graphics.dispose();
@@ -115,27 +199,21 @@ public class BIPixelBuffer extends PlatformPixelBuffer implements ImageObserver
     return (Image)image;
   }
 
-  public boolean imageUpdate(Image img, int infoflags, int x, int y, int w, int h) {
-    if ((infoflags & (ALLBITS | ABORT)) == 0) {
-      return true;
-    } else {
-      if ((infoflags & ALLBITS) != 0) {
-        if (clip != null) {
-          synchronized(clip) {
-            Graphics2D graphics = (Graphics2D)image.getGraphics();
-            graphics.drawImage(img, clip.x, clip.y, clip.width, clip.height, null);
-            graphics.dispose();
-            clip.notify();
-          }
-        }
-      }
+  private boolean isRGB888() {
+    if (!(cm instanceof DirectColorModel))
       return false;
-    }
+    DirectColorModel dcm = (DirectColorModel)cm;
+    return (dcm.getRedMask() == 0xff0000 && dcm.getGreenMask() == 0xff00 &&
+            dcm.getBlueMask() == 0xff);
   }
 
   BufferedImage image;
   DataBuffer db;
-  Rectangle clip;
+  byte[] bytes;
+  int byteStride, byteOffset;
+
+  boolean doubleBuffered;
+  BufferedImage presentImage;
 
   static LogWriter vlog = new LogWriter("BIPixelBuffer");
 }
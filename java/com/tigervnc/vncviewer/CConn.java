@@ -57,8 +57,7 @@ import com.tigervnc.network.Socket;
 import com.tigervnc.network.TcpSocket;
 
 public class CConn extends CConnection implements 
-  UserPasswdGetter, UserMsgBox, OptionsDialogCallback, 
-  FdInStreamBlockCallback, ActionListener {
+  UserPasswdGetter, UserMsgBox, OptionsDialogCallback, ActionListener {
 
   public final PixelFormat getPreferredPF() { return fullColourPF; }
   static final PixelFormat verylowColourPF =
@@ -112,6 +111,26 @@ public class CConn extends CConnection implements
     cp.compressLevel = viewer.compressLevel.getValue();
     cp.noJpeg = viewer.noJpeg.getValue();
     cp.qualityLevel = viewer.qualityLevel.getValue();
+    cp.parallelTightDecoding = viewer.parallelTightDecoding.getValue();
+    cp.zlibInflater = ZlibInflater.backendNum(viewer.zlibInflater.getValue());
+    if (cp.zlibInflater < 0) {
+      vlog.error("Unknown zlib inflater "+viewer.zlibInflater.getValue()+
+                 ", using "+ZlibInflater.backendNames[0]);
+      cp.zlibInflater = ZlibInflater.JZLIB;
+    }
+    cp.tlsWriteDelay = viewer.tlsWriteDelay.getValue();
+
+    pointerTimer = new javax.swing.Timer(0, new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        if (state() != RFBSTATE_NORMAL || shuttingDown)
+          return;
+        // Keep the timer going for as long as motion is arriving, so that
+        // the rate stays limited.
+        if (flushPointerMotion())
+          pointerTimer.restart();
+      }
+    });
+    pointerTimer.setRepeats(false);
     initMenu();
 
     if (sock != null) {
@@ -134,14 +153,18 @@ public class CConn extends CConnection implements
       }
 
       try {
-        sock = new TcpSocket(serverHost, serverPort);
+        sock = new TcpSocket(serverHost, serverPort,
+                             viewer.receiveBufferSize.getValue());
       } catch (java.lang.Exception e) {
         throw new Exception(e.getMessage());
       }
       vlog.info("connected to host "+serverHost+" port "+serverPort);
     }
 
-    sock.inStream().setBlockCallback(this);
+    // The RFB thread has nothing else to do while waiting for the server,
+    // so let it sleep in select() until data arrives or close() shuts the
+    // socket down.
+    sock.inStream().setBlocking();
     setServerName(serverHost);
     setStreams(sock.inStream(), sock.outStream());
     initialiseProtocol();
@@ -171,17 +194,6 @@ public class CConn extends CConnection implements
     viewport = null;
   }
 
-  // blockCallback() is called when reading from the socket would block.
-  public void blockCallback() {
-    try {
-      synchronized(this) {
-        wait(1);
-      }
-    } catch (java.lang.InterruptedException e) {
-      throw new Exception(e.getMessage());
-    }
-  }
-
   // getUserPasswd() is called by the CSecurity object when it needs us to read
   // a password from the user.
 
@@ -265,6 +277,10 @@ public class CConn extends CConnection implements
     cp.setPF(pendingPF);
     pendingPFChange = false;
 
+    String recordFile = viewer.recordSession.getValue();
+    if (recordFile != null && recordFile.length() > 0)
+      startRecording(recordFile);
+
     if (viewer.embed.getValue()) {
       desktop.setScaledSize();
       setupEmbeddedFrame();
@@ -371,6 +387,8 @@ public class CConn extends CConnection implements
     pendingUpdate = false;
 
     requestNewUpdate();
+
+    desktop.framebufferUpdateStart();
   }
 
   // framebufferUpdateEnd() is called at the end of an update.
@@ -380,7 +398,7 @@ public class CConn extends CConnection implements
   public void framebufferUpdateEnd()
   {
 
-    desktop.updateWindow();
+    desktop.framebufferUpdateEnd();
 
     if (firstUpdate) {
       int width, height;
@@ -681,55 +699,61 @@ public class CConn extends CConnection implements
   // format and encoding appropriately.
   private void requestNewUpdate()
   {
-    if (formatChange) {
-      PixelFormat pf;
+    // The format, encodings and update request go out in a single write
+    writer().startBatch();
+    try {
+      if (formatChange) {
+        PixelFormat pf;
 
-      /* Catch incorrect requestNewUpdate calls */
-      assert(!pendingUpdate || supportsSyncFence);
+        /* Catch incorrect requestNewUpdate calls */
+        assert(!pendingUpdate || supportsSyncFence);
 
-      if (fullColour) {
-        pf = fullColourPF;
-      } else {
-        if (lowColourLevel == 0) {
-          pf = verylowColourPF;
-        } else if (lowColourLevel == 1) {
-          pf = lowColourPF;
+        if (fullColour) {
+          pf = fullColourPF;
         } else {
-          pf = mediumColourPF;
+          if (lowColourLevel == 0) {
+            pf = verylowColourPF;
+          } else if (lowColourLevel == 1) {
+            pf = lowColourPF;
+          } else {
+            pf = mediumColourPF;
+          }
         }
-      }
 
-      if (supportsSyncFence) {
-        // We let the fence carry the pixel format and switch once we
-        // get the response back. That way we will be synchronised with
-        // when the server switches.
-        MemOutStream memStream = new MemOutStream();
+        if (supportsSyncFence) {
+          // We let the fence carry the pixel format and switch once we
+          // get the response back. That way we will be synchronised with
+          // when the server switches.
+          MemOutStream memStream = new MemOutStream();
 
-        pf.write(memStream);
+          pf.write(memStream);
 
-        writer().writeFence(fenceTypes.fenceFlagRequest | fenceTypes.fenceFlagSyncNext,
-                            memStream.length(), (byte[])memStream.data());
-      } else {
-        // New requests are sent out at the start of processing the last
-        // one, so we cannot switch our internal format right now (doing so
-        // would mean misdecoding the current update).
-        pendingPFChange = true;
-        pendingPF = pf;
-      }
+          writer().writeFence(fenceTypes.fenceFlagRequest | fenceTypes.fenceFlagSyncNext,
+                              memStream.length(), (byte[])memStream.data());
+        } else {
+          // New requests are sent out at the start of processing the last
+          // one, so we cannot switch our internal format right now (doing so
+          // would mean misdecoding the current update).
+          pendingPFChange = true;
+          pendingPF = pf;
+        }
 
-      String str = pf.print();
-      vlog.info("Using pixel format " + str);
-      writer().writeSetPixelFormat(pf);
+        String str = pf.print();
+        vlog.info("Using pixel format " + str);
+        writer().writeSetPixelFormat(pf);
 
-      formatChange = false;
-    }
+        formatChange = false;
+      }
 
-    checkEncodings();
+      checkEncodings();
 
-    if (forceNonincremental || !continuousUpdates) {
-      pendingUpdate = true;
-      writer().writeFramebufferUpdateRequest(new Rect(0, 0, cp.width, cp.height),
-                                                 !forceNonincremental);
+      if (forceNonincremental || !continuousUpdates) {
+        pendingUpdate = true;
+        writer().writeFramebufferUpdateRequest(new Rect(0, 0, cp.width, cp.height),
+                                                   !forceNonincremental);
+      }
+    } finally {
+      writer().endBatch();
     }
 
     forceNonincremental = false;
@@ -1228,6 +1252,7 @@ public class CConn extends CConnection implements
   public void writeKeyEvent(int keysym, boolean down) {
     if (state() != RFBSTATE_NORMAL || shuttingDown)
       return;
+    flushPointerMotion();
     writer().writeKeyEvent(keysym, down);
   }
 
@@ -1346,7 +1371,34 @@ public class CConn extends CConnection implements
       ev.translatePoint(sx - ev.getX(), sy - ev.getY());
     }
 
-    writer().writePointerEvent(new Point(ev.getX(), ev.getY()), buttonMask);
+    int interval = viewer.pointerEventInterval.getValue();
+    if (interval <= 0 || buttonMask != lastButtonMask) {
+      flushPointerMotion();
+      writer().writePointerEvent(ev.getX(), ev.getY(), buttonMask);
+      lastButtonMask = buttonMask;
+      return;
+    }
+
+    // Pure motion: send it now if the last interval has expired, otherwise
+    // just remember the position for when it does.
+    pointerX = ev.getX();
+    pointerY = ev.getY();
+    pointerPending = true;
+    if (!pointerTimer.isRunning()) {
+      flushPointerMotion();
+      pointerTimer.setInitialDelay(interval);
+      pointerTimer.restart();
+    }
+  }
+
+  // flushPointerMotion() sends any motion held back by the rate limit.  It
+  // must come before any other input event, to keep them in order.
+  private boolean flushPointerMotion() {
+    if (!pointerPending)
+      return false;
+    pointerPending = false;
+    writer().writePointerEvent(pointerX, pointerY, lastButtonMask);
+    return true;
   }
 
   public void writeWheelEvent(MouseWheelEvent ev) {
@@ -1354,24 +1406,40 @@ public class CConn extends CConnection implements
       return;
     int x, y;
     int clicks = ev.getWheelRotation();
-    if (clicks < 0) {
-      buttonMask = 8;
-    } else {
-      buttonMask = 16;
-    }
-    for (int i = 0; i < Math.abs(clicks); i++) {
-      x = ev.getX();
-      y = ev.getY();
-      writer().writePointerEvent(new Point(x, y), buttonMask);
-      buttonMask = 0;
-      writer().writePointerEvent(new Point(x, y), buttonMask);
+    flushPointerMotion();
+    writer().startBatch();
+    try {
+      if (clicks < 0) {
+        buttonMask = 8;
+      } else {
+        buttonMask = 16;
+      }
+      for (int i = 0; i < Math.abs(clicks); i++) {
+        x = ev.getX();
+        y = ev.getY();
+        writer().writePointerEvent(x, y, buttonMask);
+        buttonMask = 0;
+        writer().writePointerEvent(x, y, buttonMask);
+      }
+    } finally {
+      writer().endBatch();
     }
+    lastButtonMask = buttonMask;
 
   }
 
   synchronized void releaseDownKeys() {
-    for (Map.Entry<Integer, Integer> entry : downKeySym.entrySet())
-      writeKeyEvent(entry.getValue(), false);
+    if (state() != RFBSTATE_NORMAL || shuttingDown) {
+      downKeySym.clear();
+      return;
+    }
+    writer().startBatch();
+    try {
+      for (Map.Entry<Integer, Integer> entry : downKeySym.entrySet())
+        writeKeyEvent(entry.getValue(), false);
+    } finally {
+      writer().endBatch();
+    }
     downKeySym.clear();
   }
 
@@ -1431,6 +1499,10 @@ public class CConn extends CConnection implements
 
   // the following are only ever accessed by the GUI thread:
   int buttonMask;
+  private int lastButtonMask;
+  private int pointerX, pointerY;
+  private boolean pointerPending;
+  private javax.swing.Timer pointerTimer;
 
   private String serverHost;
   private int serverPort;
@@ -43,7 +43,7 @@ import com.tigervnc.rfb.*;
 import com.tigervnc.rfb.Cursor;
 import com.tigervnc.rfb.Point;
 
-class DesktopWindow extends JPanel implements Runnable, MouseListener,
+class DesktopWindow extends JPanel implements MouseListener,
   MouseMotionListener, MouseWheelListener, KeyListener {
 
   ////////////////////////////////////////////////////////////////////
@@ -66,7 +66,28 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
     } else {
       vlog.debug("GraphicsDevice does not support HW acceleration.");
     }
-    im = new BIPixelBuffer(width, height, cc, this);
+    int refreshRate = gd.getDisplayMode().getRefreshRate();
+    if (refreshRate == DisplayMode.REFRESH_RATE_UNKNOWN)
+      refreshRate = 60;
+    frameInterval = 1000000000L / refreshRate;
+    lastRepaint = System.nanoTime() - frameInterval;
+    damage.setMaxRects(maxDamageRects);
+    presented.setMaxRects(maxDamageRects);
+    repaintTimer = new Timer(0, new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        repaintDamage();
+      }
+    });
+    repaintTimer.setRepeats(false);
+    if (cc.viewer.directRaster.getValue())
+      im = new IntRasterPixelBuffer(width, height, cc, this);
+    else
+      im = new BIPixelBuffer(width, height, cc, this);
+    scaler = new ImageScaler(
+      ImageScaler.methodNum(cc.viewer.scalingMethod.getValue()));
+    doubleBuffered = cc.viewer.doubleBuffer.getValue();
+    if (doubleBuffered)
+      im.setDoubleBuffered(true);
 
     cursor = new Cursor();
     cursorBacking = new ManagedPixelBuffer();
@@ -202,40 +223,96 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
   }
 
   // setColourMapEntries() changes some of the entries in the colourmap.
-  // Unfortunately these messages are often sent one at a time, so we delay the
-  // settings taking effect unless the whole colourmap has changed.  This is
-  // because getting java to recalculate its internal translation table and
-  // redraw the screen is expensive.
+  // Only the colour model is replaced, so this is cheap enough to do for
+  // each message, even when entries are sent one at a time.
 
   public synchronized void setColourMapEntries(int firstColour, int nColours,
                                                int[] rgbs) {
     im.setColourMapEntries(firstColour, nColours, rgbs);
-    if (nColours <= 256) {
-      im.updateColourMap();
-    } else {
-      if (setColourMapEntriesTimerThread == null) {
-        setColourMapEntriesTimerThread = new Thread(this);
-        setColourMapEntriesTimerThread.start();
-      }
+    im.updateColourMap();
+    damageRect(new Rect(0, 0, im.width(), im.height()));
+    updateWindow();
+  }
+
+  // framebufferUpdateStart() and framebufferUpdateEnd() bracket the
+  // decoding of an update, during which the decode image is not fit to be
+  // presented.
+
+  public void framebufferUpdateStart() {
+    synchronized (damage) {
+      updateInProgress = true;
+    }
+  }
+
+  public void framebufferUpdateEnd() {
+    synchronized (damage) {
+      updateInProgress = false;
     }
+    updateWindow();
   }
 
-  // Update the actual window with the changed parts of the framebuffer.
+  // updateWindow() arranges for the changed parts of the framebuffer to be
+  // shown.  The painting itself is left to the GUI thread, so that decoding
+  // never waits for it.  When double buffered, this is also where the
+  // changes are copied to the image being painted, so that a frame is only
+  // ever painted whole; it must then only be called between updates.
+
   public void updateWindow() {
-    Rect r = damage;
-    if (!r.is_empty()) {
-      if (cc.cp.width != scaledWidth || cc.cp.height != scaledHeight) {
-        int x = (int)Math.floor(r.tl.x * scaleWidthRatio);
-        int y = (int)Math.floor(r.tl.y * scaleHeightRatio);
-        // Need one extra pixel to account for rounding.
-        int width = (int)Math.ceil(r.width() * scaleWidthRatio) + 1;
-        int height = (int)Math.ceil(r.height() * scaleHeightRatio) + 1;
-        paintImmediately(x, y, width, height);
-      } else {
-        paintImmediately(r.tl.x, r.tl.y, r.width(), r.height());
+    synchronized (damage) {
+      if (damage.is_empty())
+        return;
+      boolean scaled = isScaled();
+      if (doubleBuffered || scaled) {
+        presentRects.clear();
+        damage.get_rects(presentRects);
       }
+      if (doubleBuffered)
+        im.present(presentRects);
+      synchronized (im) {
+        if (scaled) {
+          Image image = im.getPresentImage();
+          if (image instanceof BufferedImage)
+            scaler.update((BufferedImage)image, scaledWidth, scaledHeight,
+                          presentRects);
+        } else {
+          // The scaler does not see this damage, so whatever it has scaled
+          // before is now out of date
+          scaler.invalidate();
+        }
+      }
+      presented.assign_union(damage);
       damage.clear();
+      if (repaintPending)
+        return;
+      repaintPending = true;
+    }
+    EventQueue.invokeLater(new Runnable() {
+      public void run() {
+        repaintDamage();
+      }
+    });
+  }
+
+  // repaintCursor() is updateWindow() for a local cursor move on the GUI
+  // thread when double buffered.  Between updates the decode image is
+  // whole, so the cursor is presented straight away.  During one it may
+  // hold a partly decoded update, so the rectangles the cursor left and
+  // entered are only queued for painting, and the cursor itself is
+  // presented with framebufferUpdateEnd().
+
+  private void repaintCursor(Rect from, Rect to) {
+    synchronized (damage) {
+      if (!updateInProgress) {
+        updateWindow();
+        return;
+      }
+      presented.assign_union(from);
+      presented.assign_union(to);
+      if (repaintPending)
+        return;
+      repaintPending = true;
     }
+    repaintDamage();
   }
 
   // resize() is called when the desktop has changed size
@@ -347,14 +424,62 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
     scaleHeightRatio = (float)scaledHeight / (float)cc.cp.height;
   }
 
+  // repaintDamage() paints each damaged rectangle, but no more often than
+  // the display refreshes.  Whatever is damaged in the meantime is picked up
+  // by the next repaint.
+
+  private void repaintDamage() {
+    long delay = lastRepaint + frameInterval - System.nanoTime();
+    if (delay > 0) {
+      repaintTimer.setInitialDelay((int)Math.max(delay / 1000000, 1));
+      repaintTimer.restart();
+      return;
+    }
+
+    repaintRects.clear();
+    synchronized (damage) {
+      presented.get_rects(repaintRects);
+      presented.clear();
+      repaintPending = false;
+    }
+    lastRepaint = System.nanoTime();
+
+    boolean scaled = isScaled();
+    for (Rect r : repaintRects) {
+      if (scaled) {
+        // Widen by a source pixel on each side for the filter footprint,
+        // plus one extra pixel to account for rounding.
+        int x = (int)Math.floor((r.tl.x - 1) * scaleWidthRatio);
+        int y = (int)Math.floor((r.tl.y - 1) * scaleHeightRatio);
+        int width = (int)Math.ceil((r.width() + 2) * scaleWidthRatio) + 1;
+        int height = (int)Math.ceil((r.height() + 2) * scaleHeightRatio) + 1;
+        paintImmediately(x, y, width, height);
+      } else {
+        paintImmediately(r.tl.x, r.tl.y, r.width(), r.height());
+      }
+    }
+  }
+
+  private boolean isScaled() {
+    return (cc.cp.width != scaledWidth || cc.cp.height != scaledHeight);
+  }
+
   public void paintComponent(Graphics g) {
     Graphics2D g2 = (Graphics2D) g;
-    if (cc.cp.width != scaledWidth || cc.cp.height != scaledHeight) {
-      g2.setRenderingHint(RenderingHints.KEY_RENDERING,
-                          RenderingHints.VALUE_RENDER_QUALITY);
-      g2.drawImage(im.getImage(), 0, 0, scaledWidth, scaledHeight, null);
-    } else {
-      g2.drawImage(im.getImage(), 0, 0, null);
+    synchronized (im) {
+      Image image = im.getPresentImage();
+      if (isScaled() && image instanceof BufferedImage) {
+        // Only does any work if the size has changed since the last update
+        scaler.update((BufferedImage)image, scaledWidth, scaledHeight,
+                      noRects);
+        g2.drawImage(scaler.getImage(), 0, 0, null);
+      } else if (isScaled()) {
+        g2.setRenderingHint(RenderingHints.KEY_RENDERING,
+                            RenderingHints.VALUE_RENDER_QUALITY);
+        g2.drawImage(image, 0, 0, scaledWidth, scaledHeight, null);
+      } else {
+        g2.drawImage(image, 0, 0, null);
+      }
     }
     g2.dispose();
   }
@@ -369,6 +494,7 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
     if (cursorAvailable) {
       // - Render the cursor!
       if (e.getX() != cursorPosX || e.getY() != cursorPosY) {
+        Rect from = cursorRect();
         hideLocalCursor();
         if (e.getX() >= 0 && e.getX() < im.width() &&
             e.getY() >= 0 && e.getY() < im.height()) {
@@ -376,6 +502,10 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
           cursorPosY = e.getY();
           showLocalCursor();
         }
+        if (doubleBuffered)
+          repaintCursor(from, cursorRect());
+        else
+          updateWindow();
       }
     }
     lastX = e.getX();
@@ -537,23 +667,21 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
     }
   }
 
-  void damageRect(Rect r) {
-    if (damage.is_empty()) {
-      damage.setXYWH(r.tl.x, r.tl.y, r.width(), r.height());
-    } else {
-      r = damage.union_boundary(r);
-      damage.setXYWH(r.tl.x, r.tl.y, r.width(), r.height());
-    }
+  // cursorRect() returns the area covered by the local cursor, which is
+  // empty if it is not shown.
+
+  private synchronized Rect cursorRect() {
+    if (!cursorVisible)
+      return new Rect();
+    return new Rect(cursorBackingX, cursorBackingY,
+                    cursorBackingX+cursorBacking.width(),
+                    cursorBackingY+cursorBacking.height());
   }
 
-  // run() is executed by the setColourMapEntriesTimerThread - it sleeps for
-  // 100ms before actually updating the colourmap.
-  public synchronized void run() {
-    try {
-      Thread.sleep(100);
-    } catch(InterruptedException e) {}
-    im.updateColourMap();
-    setColourMapEntriesTimerThread = null;
+  void damageRect(Rect r) {
+    synchronized (damage) {
+      damage.assign_union(r);
+    }
   }
 
   // access to cc by different threads is specified in CConn
@@ -561,7 +689,6 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
 
   // access to the following must be synchronized:
   PlatformPixelBuffer im;
-  Thread setColourMapEntriesTimerThread;
 
   Cursor cursor;
   boolean cursorVisible = false;     // Is cursor currently rendered?
@@ -575,9 +702,28 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
   public int scaledWidth = 0, scaledHeight = 0;
   float scaleWidthRatio, scaleHeightRatio;
 
+  // Beyond this many rectangles, the nearest damaged areas are merged.
+  static final int maxDamageRects = 16;
+
+  // access to the following must be synchronized on damage:
+  Region damage = new Region();    // changed, but not yet presented
+  Region presented = new Region(); // presented, but not yet painted
+  boolean repaintPending;
+  boolean updateInProgress;
+  java.util.ArrayList<Rect> presentRects = new java.util.ArrayList<Rect>();
+
+  boolean doubleBuffered;
+
+  // access to the following must be synchronized on im:
+  ImageScaler scaler;
+  static final java.util.List<Rect> noRects =
+    java.util.Collections.<Rect>emptyList();
+
   // the following are only ever accessed by the GUI thread:
   int lastX, lastY;
-  Rect damage = new Rect();
+  Timer repaintTimer;
+  long frameInterval, lastRepaint;
+  java.util.ArrayList<Rect> repaintRects = new java.util.ArrayList<Rect>();
 
   static LogWriter vlog = new LogWriter("DesktopWindow");
 }
@@ -0,0 +1,339 @@
+/*
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// ImageScaler keeps a scaled copy of the framebuffer image.  Rather than
+// rescaling the whole framebuffer on every paint, only the parts of the
+// copy which depend on damaged source pixels are recomputed.  The source
+// coordinates and filter weights for each destination row and column are
+// worked out once per size.
+//
+// The scaled image is always TYPE_INT_RGB, whatever the framebuffer's
+// format, so that it can be drawn without any further conversion.
+//
+
+package com.tigervnc.vncviewer;
+
+import java.awt.image.*;
+import java.util.List;
+
+import com.tigervnc.rfb.*;
+
+public class ImageScaler {
+
+  public static final int NEAREST = 0;
+  public static final int BILINEAR = 1;
+  public static final int AREA_AVERAGING = 2;
+
+  public static final String[] methodNames =
+    { "Nearest", "Bilinear", "AreaAveraging" };
+
+  public static int methodNum(String name) {
+    for (int i = 0; i < methodNames.length; i++)
+      if (methodNames[i].equalsIgnoreCase(name))
+        return i;
+    vlog.error("Unknown scaling method "+name+", using "+methodNames[0]);
+    return NEAREST;
+  }
+
+  public ImageScaler(int method_) {
+    method = method_;
+  }
+
+  public BufferedImage getImage() { return image; }
+
+  // invalidate() drops the scaled image, so that the next update() scales
+  // the whole source again.  It is for when the source has changed without
+  // update() being told.
+
+  public void invalidate() {
+    image = null;
+  }
+
+  // update() scales src to dstW x dstH.  If the source image and the sizes
+  // are unchanged since the last call, only the areas affected by the given
+  // source rectangles are recomputed; otherwise the whole image is.
+
+  public void update(BufferedImage src, int dstW, int dstH,
+                     List<Rect> damage) {
+    int srcW = src.getWidth();
+    int srcH = src.getHeight();
+    if (srcW <= 0 || srcH <= 0 || dstW <= 0 || dstH <= 0)
+      return;
+
+    boolean newSource = checkSource(src);
+
+    if (image == null || newSource ||
+        srcW != srcWidth || srcH != srcHeight ||
+        dstW != dstWidth || dstH != dstHeight) {
+      setSize(srcW, srcH, dstW, dstH);
+      scaleRect(src, 0, 0, dstW, dstH);
+      return;
+    }
+
+    for (Rect r : damage) {
+      // Widen by a source pixel on each side, to cover the filter footprint
+      // and rounding.
+      int x1 = (int)Math.floor((double)(r.tl.x - 1) * dstW / srcW);
+      int y1 = (int)Math.floor((double)(r.tl.y - 1) * dstH / srcH);
+      int x2 = (int)Math.ceil((double)(r.br.x + 1) * dstW / srcW);
+      int y2 = (int)Math.ceil((double)(r.br.y + 1) * dstH / srcH);
+      x1 = Math.max(x1, 0);
+      y1 = Math.max(y1, 0);
+      x2 = Math.min(x2, dstW);
+      y2 = Math.min(y2, dstH);
+      if (x1 < x2 && y1 < y2)
+        scaleRect(src, x1, y1, x2, y2);
+    }
+  }
+
+  private void setSize(int srcW, int srcH, int dstW, int dstH) {
+    srcWidth = srcW;
+    srcHeight = srcH;
+    dstWidth = dstW;
+    dstHeight = dstH;
+
+    image = new BufferedImage(dstW, dstH, BufferedImage.TYPE_INT_RGB);
+    dst = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+
+    row0 = new int[srcW];
+    row1 = new int[srcW];
+    row0Y = row1Y = -1;
+    elements = null;
+
+    xStart = new int[dstW];
+    xEnd = new int[dstW];
+    xWeight = new int[dstW];
+    yStart = new int[dstH];
+    yEnd = new int[dstH];
+    yWeight = new int[dstH];
+    buildTable(srcW, dstW, xStart, xEnd, xWeight);
+    buildTable(srcH, dstH, yStart, yEnd, yWeight);
+
+    if (method == AREA_AVERAGING) {
+      sumRB = new int[dstW];
+      sumG = new int[dstW];
+    }
+  }
+
+  // buildTable() works out, for each destination pixel along one axis, the
+  // source pixels it is made from:
+  //
+  //   NEAREST         start
+  //   BILINEAR        start and end (= start + 1, clamped), with the weight
+  //                   of end out of 256
+  //   AREA_AVERAGING  start up to, but not including, end
+
+  private void buildTable(int srcLen, int dstLen, int[] start, int[] end,
+                          int[] weight) {
+    for (int d = 0; d < dstLen; d++) {
+      switch (method) {
+      case BILINEAR:
+        double pos = (d + 0.5) * srcLen / dstLen - 0.5;
+        int s = (int)Math.floor(pos);
+        int w = (int)((pos - s) * 256);
+        if (s < 0) {
+          s = 0;
+          w = 0;
+        }
+        start[d] = Math.min(s, srcLen - 1);
+        end[d] = Math.min(s + 1, srcLen - 1);
+        weight[d] = w;
+        break;
+      case AREA_AVERAGING:
+        start[d] = (int)((long)d * srcLen / dstLen);
+        end[d] = (int)(((long)(d + 1) * srcLen + dstLen - 1) / dstLen);
+        end[d] = Math.min(Math.max(end[d], start[d] + 1), srcLen);
+        break;
+      default:
+        start[d] = Math.min((int)(((long)d * 2 + 1) * srcLen / (2 * dstLen)),
+                            srcLen - 1);
+        end[d] = start[d] + 1;
+      }
+    }
+  }
+
+  private void scaleRect(BufferedImage src, int x1, int y1, int x2, int y2) {
+    int sx1 = xStart[x1];
+    int sx2 = Math.max(xEnd[x2 - 1], xStart[x2 - 1] + 1);
+    sx2 = Math.min(sx2 + 1, srcWidth);
+
+    switch (method) {
+    case BILINEAR:
+      for (int y = y1; y < y2; y++) {
+        int[] top = getRow(src, yStart[y], sx1, sx2);
+        int[] bottom = getRow(src, yEnd[y], sx1, sx2);
+        int wy = yWeight[y];
+        int ptr = y * dstWidth + x1;
+        for (int x = x1; x < x2; x++) {
+          int wx = xWeight[x];
+          int t = lerp(top[xStart[x]], top[xEnd[x]], wx);
+          int b = lerp(bottom[xStart[x]], bottom[xEnd[x]], wx);
+          dst[ptr++] = lerp(t, b, wy);
+        }
+      }
+      break;
+
+    case AREA_AVERAGING:
+      for (int y = y1; y < y2; y++) {
+        for (int x = x1; x < x2; x++)
+          sumRB[x] = sumG[x] = 0;
+        int rows = yEnd[y] - yStart[y];
+        for (int sy = yStart[y]; sy < yEnd[y]; sy++) {
+          int[] row = getRow(src, sy, sx1, sx2);
+          for (int x = x1; x < x2; x++) {
+            int rb = 0, g = 0;
+            for (int sx = xStart[x]; sx < xEnd[x]; sx++) {
+              rb += row[sx] & 0xff00ff;
+              g += row[sx] & 0xff00;
+            }
+            // Average each row before summing them, so that the red and
+            // blue sums cannot run into each other.
+            int n = xEnd[x] - xStart[x];
+            sumRB[x] += ((rb >>> 16) / n) << 16 | (rb & 0xffff) / n;
+            sumG[x] += (g >>> 8) / n;
+          }
+        }
+        int ptr = y * dstWidth + x1;
+        for (int x = x1; x < x2; x++) {
+          int r = (sumRB[x] >>> 16) / rows;
+          int b = (sumRB[x] & 0xffff) / rows;
+          int g = sumG[x] / rows;
+          dst[ptr++] = r << 16 | g << 8 | b;
+        }
+      }
+      break;
+
+    default:
+      for (int y = y1; y < y2; y++) {
+        int[] row = getRow(src, yStart[y], sx1, sx2);
+        int ptr = y * dstWidth + x1;
+        for (int x = x1; x < x2; x++)
+          dst[ptr++] = row[xStart[x]];
+      }
+    }
+  }
+
+  // lerp() blends two RGB pixels, w out of 256 of the way from a to b.  Red
+  // and blue are done together.
+
+  private static int lerp(int a, int b, int w) {
+    int rb = ((a & 0xff00ff) * (256 - w) + (b & 0xff00ff) * w) >>> 8;
+    int g = ((a & 0xff00) * (256 - w) + (b & 0xff00) * w) >>> 8;
+    return (rb & 0xff00ff) | (g & 0xff00);
+  }
+
+  // getRow() returns source row y as RGB pixels, indexed by x, of which at
+  // least x1 up to x2 are valid.  The last two rows are kept, since the
+  // filters go over each source row more than once.
+
+  private int[] getRow(BufferedImage src, int y, int x1, int x2) {
+    if (y == row0Y && x1 >= row0X1 && x2 <= row0X2)
+      return row0;
+    if (y == row1Y && x1 >= row1X1 && x2 <= row1X2)
+      return row1;
+
+    int[] row = row1;
+    row1 = row0;
+    row1Y = row0Y;
+    row1X1 = row0X1;
+    row1X2 = row0X2;
+    row0 = row;
+    row0Y = y;
+    row0X1 = x1;
+    row0X2 = x2;
+
+    if (srcPixels != null) {
+      System.arraycopy(srcPixels, srcOffset + y * srcStride + x1,
+                       row, x1, x2 - x1);
+      return row;
+    }
+
+    Raster raster = src.getRaster();
+    ColorModel cm = src.getColorModel();
+    elements = raster.getDataElements(x1, y, x2 - x1, 1, elements);
+    if (elements instanceof byte[]) {
+      byte[] e = (byte[])elements;
+      for (int x = x1; x < x2; x++)
+        row[x] = cm.getRGB(e[x - x1] & 0xff);
+    } else if (elements instanceof short[]) {
+      short[] e = (short[])elements;
+      for (int x = x1; x < x2; x++)
+        row[x] = cm.getRGB(e[x - x1] & 0xffff);
+    } else {
+      int[] e = (int[])elements;
+      for (int x = x1; x < x2; x++)
+        row[x] = cm.getRGB(e[x - x1]);
+    }
+    return row;
+  }
+
+  // checkSource() looks for the common case of a source whose pixels can be
+  // copied as they are.  It returns true if src is not the image last seen.
+
+  private boolean checkSource(BufferedImage src) {
+    // The source's pixels may have changed since the rows were cached
+    row0Y = row1Y = -1;
+
+    if (src == lastSrc)
+      return false;
+    lastSrc = src;
+    srcPixels = null;
+    elements = null;
+
+    Raster raster = src.getRaster();
+    ColorModel cm = src.getColorModel();
+    if (!(raster.getDataBuffer() instanceof DataBufferInt) ||
+        !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel) ||
+        !(cm instanceof DirectColorModel))
+      return true;
+    DirectColorModel dcm = (DirectColorModel)cm;
+    if (dcm.getRedMask() != 0xff0000 || dcm.getGreenMask() != 0xff00 ||
+        dcm.getBlueMask() != 0xff)
+      return true;
+
+    DataBufferInt db = (DataBufferInt)raster.getDataBuffer();
+    srcPixels = db.getData();
+    srcStride =
+      ((SinglePixelPackedSampleModel)raster.getSampleModel()).getScanlineStride();
+    srcOffset = db.getOffset() -
+      raster.getSampleModelTranslateY() * srcStride -
+      raster.getSampleModelTranslateX();
+    return true;
+  }
+
+  private int method;
+
+  private BufferedImage image;
+  private int[] dst;
+  private int srcWidth, srcHeight, dstWidth, dstHeight;
+
+  private int[] xStart, xEnd, xWeight;
+  private int[] yStart, yEnd, yWeight;
+  private int[] sumRB, sumG;
+
+  private BufferedImage lastSrc;
+  private int[] srcPixels;
+  private int srcStride, srcOffset;
+  private Object elements;
+
+  private int[] row0, row1;
+  private int row0Y, row1Y;
+  private int row0X1, row0X2, row1X1, row1X2;
+
+  static LogWriter vlog = new LogWriter("ImageScaler");
+}
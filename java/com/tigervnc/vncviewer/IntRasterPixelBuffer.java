@@ -0,0 +1,116 @@
+/*
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// IntRasterPixelBuffer is a BIPixelBuffer which writes fills, copies and
+// pixel data straight into the int array backing the image, instead of
+// going through a Graphics2D for every call.
+//
+// Taking hold of the array makes Java2D treat the image as unmanaged, so it
+// is never cached in video memory and painting always sees the latest
+// pixels.  Colour map formats, which are not stored in a DataBufferInt, fall
+// back to the BIPixelBuffer code.
+//
+
+package com.tigervnc.vncviewer;
+
+import java.awt.image.*;
+import java.util.Arrays;
+
+import com.tigervnc.rfb.*;
+
+public class IntRasterPixelBuffer extends BIPixelBuffer
+{
+  public IntRasterPixelBuffer(int w, int h, CConn cc_, DesktopWindow desktop_) {
+    super(w, h, cc_, desktop_);
+  }
+
+  protected void createImage(int w, int h) {
+    super.createImage(w, h);
+    pixels = null;
+    data = null;
+    if (image == null || !(db instanceof DataBufferInt))
+      return;
+
+    SampleModel sm = image.getSampleModel();
+    if (!(sm instanceof SinglePixelPackedSampleModel))
+      return;
+
+    pixels = ((DataBufferInt)db).getData();
+    stride = ((SinglePixelPackedSampleModel)sm).getScanlineStride();
+    offset = db.getOffset();
+
+    // Let PixelBuffer's cursor helpers work on the image directly.
+    if (stride == w && offset == 0)
+      data = pixels;
+  }
+
+  public void fillRect(int x, int y, int w, int h, int pix) {
+    if (pixels == null) {
+      super.fillRect(x, y, w, h, pix);
+      return;
+    }
+    int ptr = offset + y * stride + x;
+    for (int j = 0; j < h; j++) {
+      Arrays.fill(pixels, ptr, ptr + w, pix);
+      ptr += stride;
+    }
+  }
+
+  public void imageRect(int x, int y, int w, int h, Object pix) {
+    if (pixels == null || !(pix instanceof int[])) {
+      super.imageRect(x, y, w, h, pix);
+      return;
+    }
+    int[] src = (int[])pix;
+    int dest = offset + y * stride + x;
+    for (int j = 0; j < h; j++) {
+      System.arraycopy(src, j * w, pixels, dest, w);
+      dest += stride;
+    }
+  }
+
+  public void copyRect(int x, int y, int w, int h, int srcX, int srcY) {
+    if (pixels == null) {
+      super.copyRect(x, y, w, h, srcX, srcY);
+      return;
+    }
+    int dest = offset + y * stride + x;
+    int src = offset + srcY * stride + srcX;
+    int inc = stride;
+
+    // Walk the rows bottom-up when moving down so that overlapping source
+    // rows are read before they are overwritten.
+    if (y > srcY) {
+      src += (h-1) * inc;
+      dest += (h-1) * inc;
+      inc = -inc;
+    }
+
+    for (int j = 0; j < h; j++) {
+      System.arraycopy(pixels, src, pixels, dest, w);
+      src += inc;
+      dest += inc;
+    }
+  }
+
+  int[] pixels;
+  int stride;
+  int offset;
+
+  static LogWriter vlog = new LogWriter("IntRasterPixelBuffer");
+}
@@ -21,7 +21,6 @@ package com.tigervnc.vncviewer;
 
 import java.awt.*;
 import java.awt.image.*;
-import java.nio.ByteOrder;
 
 import com.tigervnc.rfb.*;
 
@@ -42,25 +41,16 @@ abstract public class PlatformPixelBuffer extends PixelBuffer
   // resize() resizes the image, preserving the image data where possible.
   abstract public void resize(int w, int h);
 
+  // getNativePF() returns the format to ask the server for.  On a true
+  // colour display that is the framebuffer's own layout, so that Raw and
+  // similar pixel data only needs copying, at most with a byte swap.
+
   public PixelFormat getNativePF() {
     PixelFormat pf;
-    cm = tk.getColorModel();
-    if (cm.getColorSpace().getType() == java.awt.color.ColorSpace.TYPE_RGB) {
-      int depth = ((cm.getPixelSize() > 24) ? 24 : cm.getPixelSize());
-      int bpp = (depth > 16 ? 32 : (depth > 8 ? 16 : 8));
-      ByteOrder byteOrder = ByteOrder.nativeOrder();
-      boolean bigEndian = (byteOrder == ByteOrder.BIG_ENDIAN ? true : false);
-      boolean trueColour = (depth > 8 ? true : false);
-      int redShift    = cm.getComponentSize()[0] + cm.getComponentSize()[1];
-      int greenShift  = cm.getComponentSize()[0];
-      int blueShift   = 0;
-      pf = new PixelFormat(bpp, depth, bigEndian, trueColour,
-        (depth > 8 ? 0xff : 0),
-        (depth > 8 ? 0xff : 0),
-        (depth > 8 ? 0xff : 0),
-        (depth > 8 ? redShift : 0),
-        (depth > 8 ? greenShift : 0),
-        (depth > 8 ? blueShift : 0));
+    ColorModel cm = tk.getColorModel();
+    if (cm.getColorSpace().getType() == java.awt.color.ColorSpace.TYPE_RGB &&
+        cm.getPixelSize() > 8) {
+      pf = directPF;
     } else {
       pf = new PixelFormat(8, 8, false, false, 7, 7, 3, 0, 3, 6);
     }
@@ -72,30 +62,47 @@ abstract public class PlatformPixelBuffer extends PixelBuffer
 
   // setColourMapEntries() changes some of the entries in the colourmap.
   // However these settings won't take effect until updateColourMap() is
-  // called.  This is because getting java to recalculate its internal
-  // translation table and redraw the screen is expensive.
+  // called.
 
   public void setColourMapEntries(int firstColour, int nColours_,
                                                int[] rgbs) {
-    nColours = nColours_;
-    reds = new byte[nColours];
-    blues = new byte[nColours];
-    greens = new byte[nColours];
-    for (int i = 0; i < nColours; i++) {
+    if (reds == null) {
+      reds = new byte[256];
+      greens = new byte[256];
+      blues = new byte[256];
+    }
+    for (int i = 0; i < nColours_ && firstColour+i < 256; i++) {
       reds[firstColour+i] = (byte)(rgbs[i*3]   >> 8);
       greens[firstColour+i] = (byte)(rgbs[i*3+1] >> 8);
       blues[firstColour+i] = (byte)(rgbs[i*3+2] >> 8);
     }
+    nColours = Math.max(nColours, Math.min(firstColour+nColours_, 256));
   }
 
   public void updateColourMap() {
-    cm = new IndexColorModel(8, nColours, reds, greens, blues);
+    if (reds == null)
+      return;
+    cm = new IndexColorModel(8, 256, reds, greens, blues);
   }
 
   protected static Toolkit tk = Toolkit.getDefaultToolkit();
 
   abstract public Image getImage();
 
+  // With double buffering, the decoders write into the image returned by
+  // getImage() while painting uses a second image, which present() brings
+  // up to date.  Painting must hold the lock on this object.
+
+  public void setDoubleBuffered(boolean enable) {
+    if (enable)
+      vlog.info("Double buffering is not supported by "+
+                getClass().getName());
+  }
+
+  public Image getPresentImage() { return getImage(); }
+
+  public void present(java.util.List<Rect> rects) { }
+
   protected Image image;
 
   int nColours;
@@ -463,8 +463,12 @@ public class VncViewer extends javax.swing.JApplet
 
     try {
       cc = new CConn(this, sock, vncServerName.getValue());
-      while (!cc.shuttingDown)
-        cc.processMsg();
+      try {
+        while (!cc.shuttingDown)
+          cc.processMsg();
+      } finally {
+        cc.cleanup();
+      }
     } catch (java.lang.Exception e) {
       if (cc == null || !cc.shuttingDown) {
         reportException(e);
@@ -591,6 +595,13 @@ public class VncViewer extends javax.swing.JApplet
                         "then automatic scaling is performed, but the "+
                         "original aspect ratio is preserved.",
                         "100");
+  StringParameter scalingMethod
+  = new StringParameter("ScalingMethod",
+                        "How the remote desktop image is resampled when "+
+                        "it is scaled: \"Nearest\", \"Bilinear\" or "+
+                        "\"AreaAveraging\".  The last gives the "+
+                        "smoothest result when reducing.",
+                        "Nearest");
   BoolParameter alwaysShowServerDialog
   = new BoolParameter("AlwaysShowServerDialog",
                       "Always show the server dialog even if a server "+
@@ -656,6 +667,66 @@ public class VncViewer extends javax.swing.JApplet
                      "0 = Low, 9 = High",
                      8);
 
+  BoolParameter parallelTightDecoding
+  = new BoolParameter("ParallelTightDecoding",
+                      "Inflate, filter and convert Tight rectangles on "+
+                      "worker threads, one per zlib stream, so that large "+
+                      "updates can use more than one CPU core.",
+                      false);
+
+  StringParameter zlibInflater
+  = new StringParameter("ZlibInflater",
+                        "The zlib decompressor used for Tight and ZRLE: "+
+                        "\"JZlib\", the bundled pure Java one, or "+
+                        "\"Native\", the JRE's java.util.zip.Inflater.",
+                        "JZlib");
+
+  BoolParameter directRaster
+  = new BoolParameter("DirectRaster",
+                      "Write decoded pixels straight into the framebuffer's "+
+                      "backing array rather than drawing them through "+
+                      "Java2D.",
+                      false);
+
+  BoolParameter doubleBuffer
+  = new BoolParameter("DoubleBuffer",
+                      "Decode into one copy of the framebuffer and paint "+
+                      "from another, which is brought up to date at the "+
+                      "end of each update.  Frames are never painted half "+
+                      "decoded, at the cost of a second framebuffer.",
+                      false);
+
+  IntParameter receiveBufferSize
+  = new IntParameter("ReceiveBufferSize",
+                     "Size in bytes of the socket receive buffer "+
+                     "(SO_RCVBUF).  Raise this on fast links with a long "+
+                     "round trip.  0 keeps the system default.",
+                     0);
+
+  StringParameter recordSession
+  = new StringParameter("RecordSession",
+                        "Record everything the server sends after the "+
+                        "initial handshake to this file, for offline "+
+                        "replay.",
+                        "");
+
+  IntParameter pointerEventInterval
+  = new IntParameter("PointerEventInterval",
+                     "Time in milliseconds to rate-limit successive "+
+                     "pointer motion events.  Motion in between is merged "+
+                     "into the latest position; button changes are always "+
+                     "sent at once.  0 sends every event.",
+                     17);
+
+  IntParameter tlsWriteDelay
+  = new IntParameter("TLSWriteDelay",
+                     "Over TLS, hold key and pointer events back for up to "+
+                     "this many milliseconds, so that a burst of them is "+
+                     "encrypted and sent together.  Other messages are "+
+                     "sent at once, along with any held back.  0 disables "+
+                     "this.",
+                     0);
+
   StringParameter config
   = new StringParameter("config",
   "Specifies a configuration file to load.", null);